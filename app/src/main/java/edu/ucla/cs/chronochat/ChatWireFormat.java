@@ -0,0 +1,146 @@
+package edu.ucla.cs.chronochat;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import net.named_data.jndn.Name;
+import net.named_data.jndn.encoding.EncodingException;
+
+import java.io.IOException;
+import java.util.List;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage;
+import edu.ucla.cs.chronochat.ChatbufProto.CompactChatMessage;
+
+
+/* How chat messages are encoded in Data payloads.
+ *
+ *   The full format is a ChatMessage, as every version of the app has sent. It now also carries
+ *   the sender's features: the payload formats it can read beyond that.
+ *
+ *   The compact format is COMPACT_MARKER followed by a CompactChatMessage. Like PayloadFrames'
+ *   marker, it can't be the first byte of a protobuf message. It leaves out what the receiver
+ *   already knows from where the message came from: the room (the sync group's), the sender (the
+ *   username component of the producer's data prefix) and most of the timestamp (stored as an
+ *   offset from the producer's session number, itself a time in seconds).
+ *
+ *   Compact messages, like frames and compressed payloads (see PayloadCompression), are only
+ *   published under the payload names of DataNames, which every version of the app that fetches
+ *   those can read. Older versions fetch under the other names, and are served each seqnum's
+ *   messages as one full message (see encodeForOlderVersions()). JOINs always go out in full, so
+ *   that peers learn our features; of those, FEATURE_PRESENCE is the one still acted on, with
+ *   HELLOs sent for as long as any peer in the room doesn't announce presence through sync.
+ */
+final class ChatWireFormat {
+
+    static final int FEATURE_FRAMES = 1,
+                     FEATURE_COMPACT = 2,
+                     FEATURE_COMPRESSED = 4,
+                     FEATURE_PRESENCE = 8, // announces presence through sync instead of HELLOs
+                     LOCAL_FEATURES = FEATURE_FRAMES | FEATURE_COMPACT | FEATURE_COMPRESSED |
+                                      FEATURE_PRESENCE;
+
+    static final int COMPACT_MARKER = 0x01;
+
+    private ChatWireFormat() { }
+
+    /* The full format, advertising our features. */
+    static byte[] encodeFull(ChronoChatMessage message) {
+        return message.toProto().toBuilder().setFeatures(LOCAL_FEATURES).build().toByteArray();
+    }
+
+    static boolean isCompact(byte[] payload) {
+        return payload.length >= 1 && payload[0] == COMPACT_MARKER;
+    }
+
+    static byte[] encodeCompact(ChronoChatMessage message, long session) {
+        CompactChatMessage.Builder builder = CompactChatMessage.newBuilder()
+                .setTimestampDelta((int) (message.getTimestamp() - session));
+        if (message.getType() != ChatMessage.ChatMessageType.CHAT)
+            builder.setType(message.getType());
+        if (!message.getData().isEmpty()) builder.setData(message.getData());
+        CompactChatMessage compact = builder.build();
+
+        int size = compact.getSerializedSize();
+        byte[] payload = new byte[1 + size];
+        payload[0] = COMPACT_MARKER;
+        CodedOutputStream out = CodedOutputStream.newInstance(payload, 1, size);
+        try {
+            compact.writeTo(out);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("compact size miscalculated", e); // can't happen
+        }
+        return payload;
+    }
+
+    /* from, room and session come from where the payload was fetched; see the class comment. */
+    static ChronoChatMessage decodeCompact(byte[] payload, String from, String room,
+                                           long session) throws InvalidProtocolBufferException {
+        if (!isCompact(payload)) throw new InvalidProtocolBufferException("not a compact message");
+        CompactChatMessage compact =
+                CompactChatMessage.parser().parseFrom(payload, 1, payload.length - 1);
+        return new ChronoChatMessage(from, room, compact.getType(), compact.getData(),
+                (int) (session + compact.getTimestampDelta()));
+    }
+
+    /* Older versions of the app read one full message per seqnum, so the messages sharing one are
+     *   merged for them: its chat messages into one, a line of text each, at the first one's
+     *   timestamp. Without any, the last control message stands for the rest; with some, control
+     *   messages are left out, which at worst leaves those versions to time the sender out. from,
+     *   room and session are as for decodeCompact().
+     */
+    static byte[] encodeForOlderVersions(List<byte[]> messages, String from, String room,
+                                         long session) throws InvalidProtocolBufferException {
+        ChatMessage chat = null, control = null;
+        StringBuilder text = null;
+        for (byte[] payload : messages) {
+            ChatMessage message = isCompact(payload) ?
+                    decodeCompact(payload, from, room, session).toProto() :
+                    ChatMessage.parseFrom(payload);
+            if (message.getType() != ChatMessage.ChatMessageType.CHAT) {
+                control = message;
+            } else if (chat == null) {
+                chat = message;
+            } else {
+                if (text == null) text = new StringBuilder(chat.getData());
+                text.append('\n').append(message.getData());
+            }
+        }
+        if (text != null) chat = chat.toBuilder().setData(text.toString()).build();
+        ChatMessage merged = (chat != null) ? chat : control;
+        return (merged != null) ? merged.toByteArray() : null;
+    }
+
+    /* Data prefixes are <prefix>/<chatroom>/<marker>/<username>/<random string>, where the marker
+     *   is a version component, DATA_PREFIX_VERSION for this version of the app. Older versions
+     *   leave out both, so their prefixes are <prefix>/<chatroom>/<random string>; a random string
+     *   is never a version component, so the two can't be confused, whatever the names involved.
+     */
+    static final long DATA_PREFIX_VERSION = 2;
+    static final Name.Component DATA_PREFIX_MARKER =
+            Name.Component.fromVersion(DATA_PREFIX_VERSION);
+
+    static Name.Component makeUsernameComponent(String username) {
+        return new Name.Component(username);
+    }
+
+    /* The marker's version, or 1 for the prefix of an older version of the app. */
+    static long getDataPrefixVersion(Name dataPrefix) {
+        if (dataPrefix.size() < 3 || !dataPrefix.get(-3).isVersion()) return 1;
+        try {
+            return dataPrefix.get(-3).toVersion();
+        } catch (EncodingException e) {
+            return 1;
+        }
+    }
+
+    /* Returns null if the prefix has no username component, i.e. it comes from an older version
+     *   of the app; its user is only known once one of its messages has been read.
+     */
+    static String getUsername(String dataPrefix) {
+        Name name = new Name(dataPrefix);
+        if (getDataPrefixVersion(name) < DATA_PREFIX_VERSION) return null;
+        return name.get(-2).getValue().toString();
+    }
+}
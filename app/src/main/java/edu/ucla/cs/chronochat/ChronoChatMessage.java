@@ -1,14 +1,13 @@
 package edu.ucla.cs.chronochat;
 
+import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
-import java.text.DateFormat;
 import java.util.Comparator;
-import java.util.Date;
 
 import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage;
 import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
@@ -31,6 +30,7 @@ public class ChronoChatMessage implements Parcelable {
 
     private ChatMessage message;
     private boolean parseError = false;
+    private volatile MessageRenderModel renderModel;
 
 
     public ChronoChatMessage(String username, String chatroom, ChatMessageType type,
@@ -46,6 +46,11 @@ public class ChronoChatMessage implements Parcelable {
         setMessage(encodedMessage);
     }
 
+    ChronoChatMessage(String username, String chatroom, ChatMessageType type, String data,
+                      int timestamp) {
+        setMessage(username, chatroom, type, data, timestamp);
+    }
+
 
     private void setMessage(byte[] encodedMessage) {
         try {
@@ -86,13 +91,22 @@ public class ChronoChatMessage implements Parcelable {
     public ChatMessageType getType() { return message.getType(); }
     public int getTimestamp() { return message.getTimestamp(); }
     public boolean getParseError() { return parseError; }
+    public int getFeatures() { return message.getFeatures(); }
     public byte[] toByteArray() { return message.toByteArray(); }
+    ChatMessage toProto() { return message; }
 
     public String getTimestampString() {
-        long longTimestamp = (long) getTimestamp();
-        Date date = new Date(longTimestamp * 1000);
-        DateFormat formatter = DateFormat.getTimeInstance();
-        return formatter.format(date);
+        return MessageRenderModel.formatTime(getTimestamp());
+    }
+
+    /* Builds the chat log's render model for this message ahead of time, off the UI thread. */
+    void prepareRenderModel(Context context) {
+        if (renderModel == null) renderModel = new MessageRenderModel(context, this);
+    }
+
+    MessageRenderModel getRenderModel(Context context) {
+        prepareRenderModel(context);
+        return renderModel;
     }
 
     /* Parcelable implementation  */
@@ -1,22 +1,30 @@
 package edu.ucla.cs.chronochat;
 
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
 
-import net.named_data.jndn.Data;
-import net.named_data.jndn.Interest;
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import net.named_data.jndn.Name;
-import net.named_data.jndn.OnData;
-import net.named_data.jndn.OnTimeout;
 
-import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
 
@@ -26,26 +34,143 @@ public class ChronoChatService extends ChronoSyncService {
     private static final String TAG = "ChronoChatService";
 
     private static final int HEARTBEAT_TIMEOUT = 60000,
-                             ZOMBIE_TIMEOUT = 120000;
+                             ZOMBIE_TIMEOUT = 120000; // silence after which a user is gone
+    private static final String DATA_PREFIX_PREFERENCES = TAG + ".dataPrefixes";
+    private static final int RECEIVED_MESSAGE_CAPACITY = 256; // messages held for a hidden UI
 
     public static final String EXTRA_USERNAME = INTENT_PREFIX + "EXTRA_USERNAME",
                                EXTRA_CHATROOM = INTENT_PREFIX + "EXTRA_CHATROOM",
                                EXTRA_PREFIX = INTENT_PREFIX + "EXTRA_PREFIX",
                                EXTRA_MESSAGE = INTENT_PREFIX + "EXTRA_MESSAGE",
                                EXTRA_ROSTER = INTENT_PREFIX + "EXTRA_ROSTER",
-                               BCAST_RECEIVED_MSG = INTENT_PREFIX + "BCAST_RECEIVED_MSG",
+                               EXTRA_ROSTER_VERSION = INTENT_PREFIX + "EXTRA_ROSTER_VERSION",
                                BCAST_ROSTER = INTENT_PREFIX + "BCAST_ROSTER",
                                ACTION_GET_ROSTER = INTENT_PREFIX + "ACTION_GET_ROSTER",
                                ACTION_SEND = INTENT_PREFIX + "ACTION_SEND",
                                ACTION_STOP = INTENT_PREFIX + "ACTION_STOP";
 
-    private String activeUsername, activeChatroom, activePrefix;
-    private HashMap<String, Integer> roster, rosterAtLastZombieCheck;
-    private Long heartbeatInterestID, zombieTimeoutInterestID;
+    // the rooms we're in, by name; joined and left on the main thread
+    private final ConcurrentHashMap<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
+    // the room the activity shows, which its received messages and roster listener are for; the
+    // others are stored and notified about only
+    private volatile ChatRoom activeRoom;
+    private RosterSnapshot.Listener rosterListener; // main thread
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private TimerQueue.Timer heartbeatTimer;
+    private MessageStore messageStore;
+    private ReceivedMessageQueue receivedMessages;
+    private volatile boolean uiVisible = false;
+
+    /* What bindService() hands the activity: the service itself, since both live in one process.
+     *   Received messages reach it through setMessageListener(), and roster changes through
+     *   setRosterListener(); it sends with sendMessage(), without going through Intents.
+     */
+    class LocalBinder extends Binder {
+        ChronoChatService getService() { return ChronoChatService.this; }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    /* A room we're in, under the username and prefix we joined it with. Each room has a sync
+     *   group of its own in ChronoSyncService, all of them on the one Face and network thread, so
+     *   switching between rooms costs no teardown. The network thread keeps its roster and what
+     *   it knows of the room's producers.
+     */
+    private class ChatRoom {
+        final String username, name, prefix;
+        final Roster roster;
+        final HashMap<String, String> producerUsernames = new HashMap<>();
+        final HashMap<String, Integer> producerFeatures = new HashMap<>();
+        volatile boolean peersSeePresence = false;
+        TimerQueue.Timer zombieTimer;
+
+        ChatRoom(String username, String name, String prefix) {
+            this.username = username;
+            this.name = name;
+            this.prefix = prefix;
+            roster = new Roster(username, ZOMBIE_TIMEOUT, SystemClock.elapsedRealtime());
+            roster.setListener(newRosterRelay(roster));
+        }
+
+        ChronoChatMessage newControlMessage(ChatMessageType type, String from) {
+            return new ChronoChatMessage(from, name, type);
+        }
+
+        /* Compact (see ChatWireFormat), apart from JOINs, which go out in full so that new peers
+         *   learn what we can read, and anything sent before our session number is known.
+         */
+        byte[] encodeForSending(ChronoChatMessage message) {
+            int session = getSession(name);
+            if (session != 0 && message.getType() != ChatMessageType.JOIN)
+                return ChatWireFormat.encodeCompact(message, session);
+            return ChatWireFormat.encodeFull(message);
+        }
+
+        /* Called on the network thread with the features of each message received. */
+        void updatePeerFeatures(String producer, int features) {
+            Integer previous = producerFeatures.put(producer, features);
+            if (previous == null || previous != features) updatePeersSeePresence();
+        }
+
+        /* Called on the network thread once the user has left, so that what their producers
+         *   couldn't do no longer holds back the rest of the room.
+         */
+        void forgetPeerFeatures(String user) {
+            boolean forgotten = false;
+            for (Map.Entry<String, String> entry : producerUsernames.entrySet()) {
+                if (entry.getValue().equals(user))
+                    forgotten |= (producerFeatures.remove(entry.getKey()) != null);
+            }
+            if (forgotten) updatePeersSeePresence();
+        }
+
+        private void updatePeersSeePresence() {
+            boolean allSeePresence = true;
+            for (int peerFeatures : producerFeatures.values())
+                allSeePresence &= (peerFeatures & ChatWireFormat.FEATURE_PRESENCE) != 0;
+            peersSeePresence = allSeePresence;
+        }
+
+        /* Schedules the next zombie check for when someone in the roster may next time out, if
+         *   anyone can.
+         */
+        void scheduleZombieCheck() {
+            stopZombieChecks();
+            long deadline = roster.getNextDeadline();
+            if (deadline == Roster.NO_DEADLINE) return;
+            long delay = Math.max(1, deadline - SystemClock.elapsedRealtime());
+            Log.d(TAG, "(re)starting zombie timer for " + name + " for " + delay + " ms");
+            zombieTimer = schedule(ZombieCheck, delay);
+        }
+
+        void stopZombieChecks() {
+            if (zombieTimer != null) zombieTimer.cancel();
+            zombieTimer = null;
+        }
+
+        private final Runnable ZombieCheck = new Runnable() {
+            @Override
+            public void run() {
+
+                Log.d(TAG, "checking for zombies in " + name + "...");
+                for (String user : roster.removeZombies(SystemClock.elapsedRealtime())) {
+                    Log.d(TAG, "'" + user + "' seems to be a zombie");
+                    forgetPeerFeatures(user);
+                    // create fake LEAVE message for chat log
+                    broadcastLocalMessage(ChatRoom.this,
+                            newControlMessage(ChatMessageType.LEAVE, user));
+                }
+                scheduleZombieCheck();
+            }
+        };
+    }
 
 
     @Override
     public void onCreate() {
+        messageStore = MessageStore.getInstance(this);
+        receivedMessages = new ReceivedMessageQueue(RECEIVED_MESSAGE_CAPACITY);
+
         Intent notificationIntent = new Intent(this, MainActivity.class);
 
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
@@ -98,48 +223,132 @@ public class ChronoChatService extends ChronoSyncService {
         return START_STICKY;
     }
 
+    @Override
+    public IBinder onBind(Intent intent) { return binder; }
+
     @Override
     public void onDestroy() {
-        if (loginInfoIsSet() && roster != null) {
-            for (String user : roster.keySet()) {
-                // fake LEAVE messages for everyone in roster
-                byte[] leave = getControlMessage(ChatMessageType.LEAVE, user);
-                broadcastReceivedMessage(leave);
+        for (ChatRoom room : chatRooms.values()) {
+            for (String user : room.roster.getSnapshot().toArray()) {
+                // fake LEAVE messages for everyone in each roster; only stored, since
+                // receivedMessages is fed from the network thread only
+                messageStore.addLocal(room.name,
+                        room.newControlMessage(ChatMessageType.LEAVE, user));
             }
         }
-        prepareToLeaveChat();
+        chatRooms.clear();
+        activeRoom = null;
+        receivedMessages.clear();
         super.onDestroy();
     }
 
     @Override
-    protected void handleApplicationData(byte[] receivedData) {
-        if (activeUsername == null) {
-            Log.d(TAG, "ignoring received message because we are logged out");
+    protected void handleApplicationData(String chatroom, String producer, long session,
+                                         long seqNum, int index, byte[] receivedData) {
+        ChatRoom room = chatRooms.get(chatroom);
+        if (room == null) {
+            Log.d(TAG, "ignoring received message because we have left " + chatroom);
             return;
         }
 
-        ChronoChatMessage message = new ChronoChatMessage(receivedData);
-        if (message.getParseError()) {
-            raiseError("error receiving message: unable to parse",
-                    ErrorCode.OTHER_EXCEPTION);
-            return;
+        ChronoChatMessage message;
+        if (ChatWireFormat.isCompact(receivedData)) {
+            String from = room.producerUsernames.get(producer);
+            if (from == null) from = ChatWireFormat.getUsername(producer);
+            if (from == null) {
+                dropMessage(room, producer, "compact message from unknown user", null);
+                return;
+            }
+            try {
+                message = ChatWireFormat.decodeCompact(receivedData, from, room.name, session);
+            } catch (InvalidProtocolBufferException e) {
+                dropMessage(room, producer, "unable to parse compact message", e);
+                return;
+            }
+            room.updatePeerFeatures(producer, ChatWireFormat.LOCAL_FEATURES);
+        } else {
+            message = new ChronoChatMessage(receivedData);
+            if (message.getParseError()) {
+                dropMessage(room, producer, "unable to parse", null);
+                return;
+            }
+            room.updatePeerFeatures(producer, message.getFeatures());
         }
 
         String from = message.getFrom();
         ChatMessageType type = message.getType();
-        int timestamp = message.getTimestamp();
+        room.producerUsernames.put(producer, from);
 
-        fakeJoinMessageIfNeeded(from, type);
-        updateRoster(from, type, timestamp);
+        fakeJoinMessageIfNeeded(room, from, type);
+        room.roster.update(from, type, SystemClock.elapsedRealtime());
+        if (type == ChatMessageType.LEAVE) room.forgetPeerFeatures(from);
+        if (room.zombieTimer == null) room.scheduleZombieCheck();
         if (type == ChatMessageType.JOIN || type == ChatMessageType.CHAT ||
-                type == ChatMessageType.LEAVE)
-            broadcastReceivedMessage(receivedData);
+                type == ChatMessageType.LEAVE) {
+            long sequence = messageStore.add(room.name, producer, session, seqNum, index,
+                    message);
+            showReceivedMessage(room, message, sequence);
+        }
+    }
+
+    /* A peer's message we can't read is dropped, and shown as a gap in the chat log, rather than
+     *   raised as an error: that would stop the service, and with it every room.
+     */
+    private void dropMessage(ChatRoom room, String producer, String reason, Throwable e) {
+        Log.e(TAG, "dropping message from " + producer + " in " + room.name + ": " + reason, e);
+        handleMissingData(room.name, producer, 1);
+    }
+
+    @Override
+    protected void handleMissingData(String chatroom, String producer, int count) {
+        ChatRoom room = chatRooms.get(chatroom);
+        if (room == null) return;
+        String from = room.producerUsernames.get(producer);
+        if (from == null) from = getString(R.string.unknown_user);
+        ChronoChatMessage missing = new ChronoChatMessage(from, room.name,
+                ChatMessageType.MISSING, String.valueOf(count));
+        broadcastLocalMessage(room, missing); // lets the chat log show the gap
+    }
+
+    /* Counts as a HELLO from the producer's user. */
+    @Override
+    protected void handlePresence(String chatroom, String producer) {
+        ChatRoom room = chatRooms.get(chatroom);
+        if (room == null) return;
+        String from = room.producerUsernames.get(producer);
+        // a user who joined before us may never send data we can fetch, so go by the prefix
+        if (from == null) from = ChatWireFormat.getUsername(producer);
+        if (from == null) return; // we'll know who it is from its first message
+        fakeJoinMessageIfNeeded(room, from, ChatMessageType.HELLO);
+        room.roster.update(from, ChatMessageType.HELLO, SystemClock.elapsedRealtime());
+        if (room.zombieTimer == null) room.scheduleZombieCheck();
+    }
+
+    /* Peers whose data prefixes carry a username are of a version that also names its payloads
+     *   as in DataNames.
+     */
+    @Override
+    protected boolean namesPayloads(String producer) {
+        return ChatWireFormat.getDataPrefixVersion(new Name(producer)) >=
+                ChatWireFormat.DATA_PREFIX_VERSION;
+    }
+
+    /* Called on the network thread; see ChatWireFormat.encodeForOlderVersions(). */
+    @Override
+    protected byte[] encodeForOlderPeers(String chatroom, String dataPrefix, long session,
+                                         List<byte[]> messages) {
+        try {
+            return ChatWireFormat.encodeForOlderVersions(messages,
+                    ChatWireFormat.getUsername(dataPrefix), chatroom, session);
+        } catch (InvalidProtocolBufferException e) {
+            Log.e(TAG, "unable to read our own messages in " + chatroom, e);
+            return null;
+        }
     }
 
     @Override
     protected void doApplicationSetup() {
-        expressHeartbeatInterest();
-        expressZombieTimeoutInterest();
+        scheduleHeartbeat();
     }
 
     protected void sendMessage(byte[] data, final String prefix) {
@@ -150,185 +359,263 @@ public class ChronoChatService extends ChronoSyncService {
                     ErrorCode.OTHER_EXCEPTION);
             return;
         }
+        sendMessage(message, prefix);
+    }
 
-        initializeServiceIfNeeded(message, prefix);
+    /* Called by the bound activity on the main thread, or from an ACTION_SEND intent. The room
+     *   the message is for becomes the one shown, and is joined if we aren't in it yet; rooms
+     *   joined before stay joined until they're left with a LEAVE. The activity logs the
+     *   messages it sends itself, except JOINs: only one that actually joins the room is logged,
+     *   here, so switching back to a room we're still in doesn't add another.
+     */
+    void sendMessage(ChronoChatMessage message, final String prefix) {
+
+        ChatRoom joinedBefore = chatRooms.get(message.getTo());
+        ChatRoom room = joinIfNeeded(message, prefix);
+        setActiveRoom(room);
         ChatMessageType type = message.getType();
 
-        if (type != ChatMessageType.JOIN) {  // JOIN would be handled by initializeServiceIfNeeded()
+        if (type == ChatMessageType.JOIN) {  // sent by joinIfNeeded(), if at all
+            if (room != joinedBefore) logOwnJoin(room, message);
+        } else {
+            send(room.name, room.encodeForSending(message));
             if (type == ChatMessageType.LEAVE)
-                prepareToLeaveChat();
-            send(data);
+                leave(room);
         }
     }
 
-    private void initializeServiceIfNeeded(final ChronoChatMessage message, final String prefix) {
+    private ChatRoom joinIfNeeded(ChronoChatMessage message, String prefix) {
 
         final String username = message.getFrom(),
                 chatroom = message.getTo();
 
-        if (!networkThreadIsRunning() || !loginInfoIsSet() ||
-                !activeUsername.equals(username) || !activeChatroom.equals(chatroom) ||
-                !activePrefix.equals(prefix)) {
-
-            activeUsername = username;
-            activeChatroom = chatroom;
-            activePrefix = prefix;
-
-            roster = new HashMap<>();
-            roster.put(activeUsername, 0);
-
-            String separator = getString(R.string.uri_separator),
-                    randomString = getRandomStringForDataPrefix(),
-                    dataPrefix = prefix + separator + chatroom + separator + randomString,
-                    broadcastPrefix = getString(R.string.broadcast_base_prefix) + separator +
-                            getString(R.string.app_name_prefix_component) + separator +
-                            chatroom;
+        if (!networkThreadIsRunning())
+            chatRooms.clear(); // their sync groups were closed along with the network thread
+        ChatRoom room = chatRooms.get(chatroom);
+        if (room != null && room.username.equals(username) && room.prefix.equals(prefix))
+            return room;
+        if (room != null) stopZombieChecks(room);
+
+        room = new ChatRoom(username, chatroom, prefix);
+        chatRooms.put(chatroom, room);
+
+        String separator = getString(R.string.uri_separator),
+                randomString = getRandomStringForDataPrefix(username, chatroom, prefix),
+                marker = ChatWireFormat.DATA_PREFIX_MARKER.toEscapedString(),
+                usernameComponent =
+                        ChatWireFormat.makeUsernameComponent(username).toEscapedString(),
+                dataPrefix = prefix + separator + chatroom + separator + marker + separator +
+                        usernameComponent + separator + randomString,
+                broadcastPrefix = getString(R.string.broadcast_base_prefix) + separator +
+                        getString(R.string.app_name_prefix_component) + separator +
+                        chatroom,
+                presencePrefix = getString(R.string.broadcast_base_prefix) + separator +
+                        getString(R.string.presence_prefix_component) + separator +
+                        chatroom;
+
+        ChronoChatMessage join = (message.getType() == ChatMessageType.JOIN) ?
+                message : room.newControlMessage(ChatMessageType.JOIN, username);
+        joinRoom(chatroom, dataPrefix, broadcastPrefix, presencePrefix,
+                ChatWireFormat.encodeFull(join));
+        return room;
+    }
 
-            byte[] joinMessage = (message.getType() == ChatMessageType.JOIN) ?
-                    message.toByteArray() : getControlMessage(ChatMessageType.JOIN);
-            initializeService(dataPrefix, broadcastPrefix, joinMessage);
-        }
+    /* Called on the main thread after sending our LEAVE, which is still published: the room's
+     *   sync group lingers a little, in case we're back soon.
+     */
+    private void leave(ChatRoom room) {
+        Log.d(TAG, "leaving " + room.name + "...");
+        chatRooms.remove(room.name, room);
+        leaveRoom(room.name);
+        stopZombieChecks(room);
+        if (room == activeRoom) setActiveRoom(null);
     }
 
-    private void prepareToLeaveChat() {
-        Log.d(TAG, "preparing to leave chat...");
-        clearLoginInfo();
-        if (heartbeatInterestID != null) {                      // stop heartbeat
-            if (face != null) {
-                Log.d(TAG, "removing heartbeat timeout interest");
-                face.removePendingInterest(heartbeatInterestID);
-            }
-            heartbeatInterestID = null;
-        }
-        if (zombieTimeoutInterestID != null) {                   // stop zombie timeout
-            if (face != null) {
-                Log.d(TAG, "removing zombie timeout interest");
-                face.removePendingInterest(zombieTimeoutInterestID);
+    private void stopZombieChecks(final ChatRoom room) {
+        runOnNetworkThread(new Runnable() {
+            @Override
+            public void run() {
+                room.stopZombieChecks();
             }
-            zombieTimeoutInterestID = null;
-        }
+        });
     }
 
-    private void fakeJoinMessageIfNeeded(String from, ChatMessageType type) {
-        if (roster.containsKey(from) || type == ChatMessageType.JOIN) return;
-        byte[] join = getControlMessage(ChatMessageType.JOIN, from);
-        broadcastReceivedMessage(join);
+    /* Called on the main thread. Messages received for the room shown before are dropped; they're
+     *   in the store.
+     */
+    private void setActiveRoom(ChatRoom room) {
+        if (room == activeRoom) return;
+        Log.d(TAG, "showing " + ((room != null) ? room.name : "no room"));
+        activeRoom = room;
+        receivedMessages.clear();
+        if (rosterListener != null)
+            rosterListener.onRosterChanged(RosterSnapshot.Change.reset(getRosterSnapshot()));
     }
 
-    private void updateRoster(String from, ChatMessageType type, int timestamp) {
-        if (type == ChatMessageType.LEAVE && !from.equals(activeUsername)) {
-            roster.remove(from);
-        } else {
-            roster.put(from, timestamp);
-        }
+    private void fakeJoinMessageIfNeeded(ChatRoom room, String from, ChatMessageType type) {
+        if (room.roster.contains(from) || type == ChatMessageType.JOIN) return;
+        broadcastLocalMessage(room, room.newControlMessage(ChatMessageType.JOIN, from));
     }
 
-    private void broadcastReceivedMessage(byte[] message) {
-        Intent bcast = new Intent(BCAST_RECEIVED_MSG);
-        bcast.putExtra(EXTRA_MESSAGE, message);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(bcast);
-
+    /* storeSequence is the message's sequence number in the MessageStore, or 0 if it wasn't
+     *   stored; it lets the activity skip messages it has already loaded from the store. Only
+     *   messages for the room shown reach the activity.
+     */
+    private void showReceivedMessage(ChatRoom room, ChronoChatMessage message,
+                                     long storeSequence) {
+        if (room != activeRoom) {
+            showNotification(message);
+            return;
+        }
+        if (!uiVisible) showNotification(message);
+        message.prepareRenderModel(this); // here on the network thread rather than when shown
+        receivedMessages.add(message, storeSequence);
     }
 
-    private void broadcastRoster() {
-        Intent rosterIntent = new Intent(BCAST_ROSTER);
-        if (roster != null) {
-            String[] usernames = roster.keySet().toArray(new String[0]);
-            rosterIntent.putExtra(EXTRA_ROSTER, usernames);
-        }
-        LocalBroadcastManager.getInstance(this).sendBroadcast(rosterIntent);
+    /* Called on the main thread, after the room has been shown. Our own message doesn't need a
+     *   notification, even while the activity is hidden.
+     */
+    private void logOwnJoin(final ChatRoom room, final ChronoChatMessage join) {
+        runOnNetworkThread(new Runnable() {
+            @Override
+            public void run() {
+                long sequence = messageStore.addLocal(room.name, join);
+                if (room != activeRoom) return;
+                join.prepareRenderModel(ChronoChatService.this);
+                receivedMessages.add(join, sequence);
+            }
+        });
     }
 
-    private void expressHeartbeatInterest() {
-        Log.d(TAG, "(re)starting heartbeat timeout");
-        heartbeatInterestID = expressTimeoutInterest(OnHeartBeatTimeout, HEARTBEAT_TIMEOUT,
-                "error setting up heartbeat");
+    /* Stores and shows a message made up for the chat log, such as a fake JOIN or LEAVE. */
+    private void broadcastLocalMessage(ChatRoom room, ChronoChatMessage message) {
+        long sequence = messageStore.addLocal(room.name, message);
+        showReceivedMessage(room, message, sequence);
     }
 
-    private void expressZombieTimeoutInterest() {
-        Log.d(TAG, "(re)starting zombie timeout");
-        zombieTimeoutInterestID = expressTimeoutInterest(OnZombieTimeout, ZOMBIE_TIMEOUT,
-                "error setting up zombie timeout");
+    /* Called by the bound activity on the main thread: with a listener while it's visible, and
+     *   with null when it's hidden, in which case received messages wait for it and notifications
+     *   are shown for them instead.
+     */
+    void setMessageListener(ReceivedMessageQueue.Listener listener) {
+        uiVisible = (listener != null);
+        if (uiVisible) hideNotification();
+        receivedMessages.setListener(listener);
     }
 
-    private Long expressTimeoutInterest(OnTimeout onTimeout, long lifetimeMillis, String errorMsg) {
-        Interest timeout = new Interest(new Name("/timeout"));
-        timeout.setInterestLifetimeMilliseconds(lifetimeMillis);
-        try {
-            return face.expressInterest(timeout, DummyOnData, onTimeout);
-        } catch (IOException e) {
-            raiseError(errorMsg, ErrorCode.NFD_PROBLEM, e);
-            return null;
-        }
+    /* Called by the bound activity on the main thread, like setMessageListener(). The listener
+     *   is told of every change to the shown room's roster on the main thread, starting with a
+     *   RESET to the roster as it is now, and with another whenever another room is shown.
+     */
+    void setRosterListener(RosterSnapshot.Listener listener) {
+        rosterListener = listener;
+        if (listener != null)
+            listener.onRosterChanged(RosterSnapshot.Change.reset(getRosterSnapshot()));
     }
 
-    private byte[] getControlMessage(ChatMessageType type) {
-        return getControlMessage(type, activeUsername);
+    /* The shown room's roster. Safe to call from any thread. */
+    RosterSnapshot getRosterSnapshot() {
+        ChatRoom room = activeRoom;
+        return (room != null) ? room.roster.getSnapshot() : RosterSnapshot.EMPTY;
     }
 
-    private byte[] getControlMessage(ChatMessageType type, String from) {
-        ChronoChatMessage message = new ChronoChatMessage(from, activeChatroom, type);
-        return message.toByteArray();
+    /* Passes the roster's changes from the network thread to the roster listener, unless its room
+     *   isn't the one shown by the time they get to the main thread.
+     */
+    private RosterSnapshot.Listener newRosterRelay(final Roster source) {
+        return new RosterSnapshot.Listener() {
+            @Override
+            public void onRosterChanged(final RosterSnapshot.Change change) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ChatRoom room = activeRoom;
+                        if (room != null && source == room.roster && rosterListener != null)
+                            rosterListener.onRosterChanged(change);
+                    }
+                });
+            }
+        };
     }
 
-    private String getRandomStringForDataPrefix() {
-        return UUID.randomUUID().toString();
+    private void showNotification(ChronoChatMessage message) {
+
+        ChatMessageType type = message.getType();
+        if (type != ChatMessageType.CHAT) return;
+
+        String from = message.getFrom(), text = message.getData();
+
+        NotificationCompat.Builder builder =
+                (NotificationCompat.Builder) new NotificationCompat.Builder(this)
+                        .setSmallIcon(R.drawable.notification_icon)
+                        .setContentTitle(from)
+                        .setContentText(text)
+                        .setColor(ContextCompat.getColor(getApplicationContext(),
+                                R.color.colorPrimary))
+                        .setDefaults(Notification.DEFAULT_SOUND|Notification.DEFAULT_LIGHTS);
+
+        Intent intent = new Intent(this, MainActivity.class);
+        PendingIntent resultPendingIntent = PendingIntent.getActivity(getApplicationContext(),
+                (int)System.currentTimeMillis(), intent, 0);
+
+        builder.setContentIntent(resultPendingIntent);
+        builder.setAutoCancel(true);
+
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(MainActivity.NOTIFICATION_ID, builder.build());
     }
 
-    private boolean loginInfoIsSet() {
-        return (activeUsername != null && activeChatroom != null && activePrefix != null);
+    private void hideNotification() {
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(MainActivity.NOTIFICATION_ID);
     }
 
-    private void clearLoginInfo() {
-        Log.d(TAG, "clearing login info");
-        activeUsername = activeChatroom = activePrefix = null;
+    private void broadcastRoster() {
+        Intent rosterIntent = new Intent(BCAST_ROSTER);
+        if (activeRoom != null) {
+            RosterSnapshot snapshot = getRosterSnapshot();
+            rosterIntent.putExtra(EXTRA_ROSTER, snapshot.toArray())
+                        .putExtra(EXTRA_ROSTER_VERSION, snapshot.getVersion());
+        }
+        LocalBroadcastManager.getInstance(this).sendBroadcast(rosterIntent);
     }
 
+    private void scheduleHeartbeat() {
+        Log.d(TAG, "(re)starting heartbeat timer");
+        if (heartbeatTimer != null) heartbeatTimer.cancel();
+        heartbeatTimer = schedule(Heartbeat, HEARTBEAT_TIMEOUT);
+    }
 
-    private static final OnData DummyOnData = new OnData() {
-        @Override
-        public void onData(Interest interest, Data data) {
-            Log.e(TAG, "DummyOnData callback should never be called!");
+    /* The random string is remembered per login so that our data prefix stays the same across
+     *   service restarts, which lets peers keep fetching data we published before the restart.
+     */
+    private String getRandomStringForDataPrefix(String username, String chatroom, String prefix) {
+        SharedPreferences preferences = getSharedPreferences(DATA_PREFIX_PREFERENCES, MODE_PRIVATE);
+        String key = prefix + "\n" + chatroom + "\n" + username,
+               randomString = preferences.getString(key, null);
+        if (randomString == null) {
+            randomString = UUID.randomUUID().toString();
+            preferences.edit().putString(key, randomString).apply();
         }
-    };
+        return randomString;
+    }
 
-    private final OnTimeout OnHeartBeatTimeout = new OnTimeout() {
-        @Override
-        public void onTimeout(Interest interest) {
-            Log.d(TAG, "sending HELLO");
-            byte[] hello = getControlMessage(ChatMessageType.HELLO);
-            send(hello);
-            expressHeartbeatInterest();
-        }
-    };
 
-    private final OnTimeout OnZombieTimeout = new OnTimeout() {
+    private final Runnable Heartbeat = new Runnable() {
         @Override
-        public void onTimeout(Interest interest) {
-
-            Log.d(TAG, "checking for zombies...");
-            if (rosterAtLastZombieCheck == null) rosterAtLastZombieCheck = new HashMap<>();
-            HashMap<String, Integer> updatedRoster = new HashMap<>();
-
-            for (String user : roster.keySet()) {
-
-                Integer currentTimestamp = roster.get(user),
-                        lastTimestamp = rosterAtLastZombieCheck.get(user);
-
-                if (!currentTimestamp.equals(lastTimestamp) || user.equals(activeUsername)) {
-                    Log.d(TAG, "'" + user + "' seems alive");
-                    updatedRoster.put(user, currentTimestamp);
-                } else {
-                    Log.d(TAG, "'" + user + "' seems to be a zombie");
-                    byte[] leave = getControlMessage(ChatMessageType.LEAVE, user);
-                    broadcastReceivedMessage(leave); // create fake LEAVE message for chat log
-                    // Note that we're leaving the user out of "updatedRoster"...
+        public void run() {
+            for (ChatRoom room : chatRooms.values()) {
+                announcePresence(room.name);
+                // peers that predate presence announcements still need a HELLO to fetch
+                if (!room.peersSeePresence) {
+                    Log.d(TAG, "sending HELLO to " + room.name);
+                    send(room.name, room.encodeForSending(
+                            room.newControlMessage(ChatMessageType.HELLO, room.username)));
                 }
             }
-
-            roster = updatedRoster;
-            rosterAtLastZombieCheck = new HashMap<>(updatedRoster);
-            expressZombieTimeoutInterest();
+            scheduleHeartbeat();
         }
     };
 }
@@ -3,6 +3,7 @@ package edu.ucla.cs.chronochat;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -24,12 +25,20 @@ import net.named_data.jndn.security.identity.IdentityManager;
 import net.named_data.jndn.security.identity.MemoryIdentityStorage;
 import net.named_data.jndn.security.identity.MemoryPrivateKeyStorage;
 import net.named_data.jndn.sync.ChronoSync2013;
+import net.named_data.jndn.transport.TcpTransport;
 import net.named_data.jndn.util.Blob;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 
 public abstract class ChronoSyncService extends Service {
@@ -37,6 +46,21 @@ public abstract class ChronoSyncService extends Service {
     private static final String TAG = "ChronoSyncService";
     private static final double SYNC_LIFETIME = 5000.0;
     private static final boolean RETRIEVE_STALE_MESSAGES_BY_DEFAULT = true;
+    private static final long DEFAULT_BATCH_WINDOW_MILLIS = 20;
+    // batches always fit in one Data packet; only a single large message is segmented
+    private static final int MAX_BATCH_PAYLOAD_SIZE = PayloadSegments.SEGMENT_SIZE;
+    // jndn doesn't tell us when its own timers (interest lifetimes) expire, so we never block
+    // longer than this before giving processEvents() a chance to fire them
+    private static final long MAX_EVENT_WAIT_MILLIS = 1000;
+    // wake slightly after a data interest expires, since jndn times interests on its own clock
+    private static final long INTEREST_EXPIRY_SLACK_MILLIS = 5;
+    // how long a room we left keeps serving our data, so peers can still fetch what we sent last
+    private static final long ROOM_LINGER_MILLIS = 2 * (long) SYNC_LIFETIME;
+    private static final long LOOP_STATS_INTERVAL_NANOS = 60 * 1000000000L;
+    private static final String SENT_DATA_DIRECTORY = "sent-data";
+    private static final long SENT_DATA_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+    private static final long ENCODED_DATA_CACHE_BYTES = 1024 * 1024;
+    private static final int DUPLICATE_FILTER_CAPACITY = 2048;
 
     /* Intent constants */
     public static final String
@@ -49,47 +73,78 @@ public abstract class ChronoSyncService extends Service {
     private ErrorCode raisedErrorCode = null;
 
     protected Face face;
-    private Name dataPrefix, broadcastPrefix;
+    private SelectableTcpTransport transport;
+    private volatile Selector selector;
 
-    private ChronoSync2013 sync;
-    private boolean networkThreadShouldStop,
-                    syncInitialized = false;
+    private volatile boolean networkThreadShouldStop;
     private final boolean shouldRetrieveStaleData;
+    private final long batchWindowMillis;
     private KeyChain keyChain;
-    private HashMap<String, Long> nextSeqNumToRequest;
-    private ArrayList<byte[]> sentData;
-    private int session;
+    // by name; only the network thread adds and removes rooms, but any thread may look one up
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private boolean logPackets;
+    // shared by all rooms, and kept across restarts of the network thread
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter(DUPLICATE_FILTER_CAPACITY);
+    private final EncodedDataCache encodedDataCache = new EncodedDataCache(ENCODED_DATA_CACHE_BYTES);
+    // heartbeats, zombie checks, fetch retries and batch windows; network thread only
+    private final TimerQueue timers = new TimerQueue();
+    private TimerQueue.Timer fetchTimer;
+    private final PayloadCompression compression = new PayloadCompression(); // network thread
+    private static final Runnable DO_NOTHING = new Runnable() {
+        @Override
+        public void run() { }
+    };
+    private final CommandMailbox mailbox = new CommandMailbox(new Runnable() {
+        @Override
+        public void run() { wakeNetworkThread(); }
+    });
+    private final NetworkLoopStats loopStats = new NetworkLoopStats();
+    private volatile long firstUnpublishedSendNanos = 0;
 
-    private final Thread networkThread = new Thread(new Runnable() {
+    private Thread networkThread;
+
+    private final Runnable networkLoop = new Runnable() {
         @Override
         public void run () {
             Log.d(TAG, "network thread started");
+            // per-packet logs are costly on hot paths; "setprop log.tag.<TAG> VERBOSE" enables them
+            logPackets = Log.isLoggable(TAG, Log.VERBOSE);
             try {
                 initializeKeyChain();
                 setCommandSigningInfo();
-                registerDataPrefix();
-                setUpChronoSync();
                 doApplicationSetup();
             } catch (Exception e) {
                 raiseError("error during network thread initialization",
                         ErrorCode.OTHER_EXCEPTION, e);
             }
+            loopStats.reset();
             while (!networkThreadShouldStop) {
-                publishSeqNumsIfNeeded();
                 try {
+                    int eventCount = mailbox.drain();
+                    eventCount += timers.runDue(SystemClock.elapsedRealtime());
+                    eventCount += publishSeqNumsIfNeeded();
                     face.processEvents();
-                    Thread.sleep(100); // avoid hammering the CPU
+                    eventCount += transport.takeReceivedElementCount();
+                    loopStats.recordWakeup(eventCount);
+                    logLoopStatsIfNeeded();
+                    updateFetchTimer();
+                    waitForNetworkEvents();
                 } catch (IOException e) {
                     raiseError("error in processEvents loop", ErrorCode.NFD_PROBLEM, e);
                 } catch (Exception e) {
                     raiseError("error in processEvents loop", ErrorCode.OTHER_EXCEPTION, e);
                 }
             }
+            Log.d(TAG, "network loop stats: " + loopStats);
+            Log.d(TAG, "encoded data cache: " + encodedDataCache);
+            Log.d(TAG, "duplicate filter: " + duplicateFilter);
+            mailbox.cancelPending();
+            for (Room room : rooms.values()) room.cancelBatch();
             doFinalCleanup();
             handleAnyRaisedError();
             Log.d(TAG, "network thread stopped");
         }
-    });
+    };
 
 
     public ChronoSyncService() {
@@ -97,7 +152,16 @@ public abstract class ChronoSyncService extends Service {
     }
 
     public ChronoSyncService(boolean shouldRetrieveStaleData) {
+        this(shouldRetrieveStaleData, DEFAULT_BATCH_WINDOW_MILLIS);
+    }
+
+    /* batchWindowMillis: how long after publishing data we wait for more messages to go out with
+     *   the next seqnum. A message sent after a quiet period of at least this long goes out
+     *   immediately; zero disables batching.
+     */
+    public ChronoSyncService(boolean shouldRetrieveStaleData, long batchWindowMillis) {
         this.shouldRetrieveStaleData = shouldRetrieveStaleData;
+        this.batchWindowMillis = batchWindowMillis;
     }
 
 
@@ -118,55 +182,169 @@ public abstract class ChronoSyncService extends Service {
     public IBinder onBind(Intent intent) { return null; }
 
 
-    protected void initializeService(String dataPrefixStr, String broadcastPrefixStr,
-                                     byte[] initialData) {
-        Log.d(TAG, "(re)initializing service...");
-        stopNetworkThreadAndBlockUntilDone();
-        face = new Face(getString(R.string.face_uri));
-        dataPrefix = new Name(dataPrefixStr);
-        broadcastPrefix = new Name(broadcastPrefixStr);
-        nextSeqNumToRequest = new HashMap<>();
-        sentData = new ArrayList<>();
-        session = (int) (System.currentTimeMillis() / 1000);
-        send(initialData);
-        startNetworkThread();
-        Log.d(TAG, "service initialized");
+    /* Joins a room, named however the application likes, and publishes initialData in it.
+     *   Producers announce their data on broadcastPrefix, and their presence on presencePrefix,
+     *   which must not be under broadcastPrefix. Every room shares the one Face and network
+     *   thread, which is started if it isn't running. Joining a room again under the same data
+     *   prefix keeps its sync state, even if it was left moments ago; under another data prefix,
+     *   the room starts over. Call on the main thread.
+     */
+    protected void joinRoom(final String room, String dataPrefixStr, String broadcastPrefixStr,
+                            String presencePrefixStr, byte[] initialData) {
+        Log.d(TAG, "joining room " + room + "...");
+        if (!startNetworkThreadIfNeeded()) return;
+        final Name dataPrefix = new Name(dataPrefixStr),
+                   broadcastPrefix = new Name(broadcastPrefixStr),
+                   presencePrefix = new Name(presencePrefixStr);
+        runOnNetworkThread(new Runnable() {
+            @Override
+            public void run() {
+                openRoom(room, dataPrefix, broadcastPrefix, presencePrefix);
+            }
+        });
+        send(room, initialData);
+    }
+
+    /* Stops fetching from the room, which is closed once peers have had ROOM_LINGER_MILLIS to
+     *   fetch what we sent last, unless it is joined again first. Safe to call from any thread.
+     */
+    protected void leaveRoom(final String room) {
+        runOnNetworkThread(new Runnable() {
+            @Override
+            public void run() {
+                Room leaving = rooms.get(room);
+                if (leaving != null) leaving.leave();
+            }
+        });
     }
 
-    private void startNetworkThread() {
-        if (!networkThread.isAlive()) {
-            networkThreadShouldStop = false;
-            networkThread.start();
+    private void openRoom(String name, Name dataPrefix, Name broadcastPrefix,
+                          Name presencePrefix) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            if (room.dataPrefix.equals(dataPrefix)) {
+                room.rejoin();
+                return;
+            }
+            room.close(); // joined again under another username
+        }
+        room = new Room(name, dataPrefix, broadcastPrefix, presencePrefix);
+        rooms.put(name, room);
+        room.open();
+    }
+
+    /* Returns false if the network thread couldn't be started. */
+    private boolean startNetworkThreadIfNeeded() {
+        if (networkThreadIsRunning() && !networkThreadShouldStop) return true;
+        stopNetworkThreadAndBlockUntilDone(); // in case it's on its way out
+        mailbox.cancelPending(); // anything posted while no network thread was running is stale
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            raiseError("unable to open selector for network thread", ErrorCode.OTHER_EXCEPTION, e);
+            handleAnyRaisedError();
+            return false;
         }
+        transport = new SelectableTcpTransport(selector);
+        face = new Face(transport, new TcpTransport.ConnectionInfo(getString(R.string.face_uri)));
+        networkThreadShouldStop = false;
+        networkThread = new Thread(networkLoop); // a finished Thread can't be restarted
+        networkThread.start();
+        return true;
     }
 
     private void stopNetworkThread() {
         networkThreadShouldStop = true;
+        wakeNetworkThread();
     }
 
     protected boolean networkThreadIsRunning() {
-        return networkThread.isAlive();
+        return (networkThread != null && networkThread.isAlive());
     }
 
     private void stopNetworkThreadAndBlockUntilDone() {
         stopNetworkThread();
+        if (networkThread == null) return;
         Log.d(TAG, "waiting for network thread to stop...");
         while(networkThread.isAlive()) {
             try {
-                Thread.sleep(100);
+                networkThread.join();
             } catch (InterruptedException e) {
                 Log.e(TAG, "interruption while waiting for network thread to stop", e);
             }
         }
     }
 
+    /* Wakes the network thread if it is blocked waiting for network events. Safe to call from any
+     *   thread.
+     */
+    protected void wakeNetworkThread() {
+        Selector selector = this.selector;
+        if (selector != null) selector.wakeup();
+    }
+
+    private void waitForNetworkEvents() throws IOException {
+        // don't block if there is sent data whose seqnum can be published right away
+        if (networkThreadShouldStop || !mailbox.isEmpty() || hasUnpublishedSeqNums()) return;
+        long timeout = MAX_EVENT_WAIT_MILLIS,
+             deadline = timers.getNextDeadline();
+        if (deadline != TimerQueue.NO_DEADLINE)
+            timeout = Math.min(timeout, deadline - SystemClock.elapsedRealtime());
+        if (timeout > 0) selector.select(timeout);
+        else selector.selectNow();
+        selector.selectedKeys().clear();
+    }
+
+    /* Keeps fetchTimer set for when the rooms' fetch pipelines next need attention: when a
+     *   backed-off retry comes due, or just after a data interest expires, so that processEvents()
+     *   notices.
+     */
+    private void updateFetchTimer() {
+        long now = SystemClock.elapsedRealtime(),
+             deadline = FetchPipeline.NO_DEADLINE;
+        for (Room room : rooms.values()) deadline = Math.min(deadline, room.getFetchDeadline(now));
+        if (deadline != FetchPipeline.NO_DEADLINE) deadline += INTEREST_EXPIRY_SLACK_MILLIS;
+        if (fetchTimer != null) {
+            if (fetchTimer.isScheduled() && fetchTimer.getDue() == deadline) return;
+            fetchTimer.cancel();
+            fetchTimer = null;
+        }
+        if (deadline != FetchPipeline.NO_DEADLINE)
+            fetchTimer = timers.schedule(FillFetchPipelines, deadline);
+    }
+
+    private final Runnable FillFetchPipelines = new Runnable() {
+        @Override
+        public void run() {
+            fetchTimer = null;
+            for (Room room : rooms.values()) room.fillFetchPipeline();
+        }
+    };
+
+    private void logLoopStatsIfNeeded() {
+        if (loopStats.getNanosSincePeriodStart() < LOOP_STATS_INTERVAL_NANOS) return;
+        Log.d(TAG, "network loop stats: " + loopStats);
+        Log.d(TAG, "encoded data cache: " + encodedDataCache);
+        loopStats.reset();
+    }
+
     private void doFinalCleanup() {
         Log.d(TAG, "cleaning up and resetting service...");
-        syncInitialized = false;
-        if (sync != null) sync.shutdown();
+        for (Room room : rooms.values()) room.close();
+        timers.clear();
+        fetchTimer = null;
         if (face != null) face.shutdown();
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "error closing selector", e);
+            }
+        }
+        compression.close();
         face = null;
-        sync = null;
+        transport = null;
+        selector = null;
         Log.d(TAG, "service cleanup/reset complete");
     }
 
@@ -201,30 +379,6 @@ public abstract class ChronoSyncService extends Service {
         face.setCommandSigningInfo(keyChain, defaultCertificateName);
     }
 
-    private void registerDataPrefix () {
-        Log.d(TAG, "registering data prefix...");
-        try {
-            face.registerPrefix(dataPrefix, OnDataInterest,
-                    OnDataPrefixRegisterFailed, OnDataPrefixRegisterSuccess);
-        } catch (IOException | SecurityException e) {
-            // should also be handled in callback, but in just in case...
-            raiseError("exception registering data prefix", ErrorCode.NFD_PROBLEM, e);
-        }
-
-    }
-
-    private void setUpChronoSync() {
-        try {
-            sync = new ChronoSync2013(OnReceivedChronoSyncState, OnChronoSyncInitialized,
-                    dataPrefix, broadcastPrefix, session, face, keyChain,
-                    keyChain.getDefaultCertificateName(), SYNC_LIFETIME,
-                    OnBroadcastPrefixRegisterFailed);
-        } catch (IOException | SecurityException e) {
-            // should also be handled in callback, but in just in case...
-            raiseError("exception setting up ChronoSync", ErrorCode.NFD_PROBLEM, e);
-        }
-    }
-
     protected abstract void doApplicationSetup();
 
     protected void raiseError(String logMessage, ErrorCode code, Throwable exception) {
@@ -249,182 +403,818 @@ public abstract class ChronoSyncService extends Service {
         LocalBroadcastManager.getInstance(ChronoSyncService.this).sendBroadcast(bcast);
     }
 
-    protected void send(byte[] message) {
-        sentData.add(message);
+    /* Our session number in the room, a time in seconds; 0 until the network thread has picked
+     *   it. Safe to call from any thread.
+     */
+    protected int getSession(String room) {
+        Room joined = rooms.get(room);
+        return (joined != null) ? joined.session : 0;
     }
 
-    private void publishSeqNumsIfNeeded() {
-        if (!syncInitialized) return;
-        while(nextSyncSeqNum() < nextDataSeqNum()) {
-            long seqNumToPublish = nextSyncSeqNum();
-            try {
-                sync.publishNextSequenceNo();
-                Log.d(TAG, "published seqnum " + seqNumToPublish);
-            } catch (IOException | SecurityException e) {
-                raiseError("failed to publish seqnum " + seqNumToPublish, ErrorCode.NFD_PROBLEM, e);
-            }
-        }
+    /* Queues a message to be published in the room. Messages sent close together share a seqnum
+     *   (see PayloadFrames). The returned Future yields the seqnum once it has been assigned, or
+     *   fails if the room hasn't been joined. Safe to call from any thread.
+     */
+    protected Future<Long> send(String room, byte[] message) {
+        if (firstUnpublishedSendNanos == 0) firstUnpublishedSendNanos = System.nanoTime();
+        return mailbox.post(new SendCommand(room, message));
     }
 
-    private void processSyncState(ChronoSync2013.SyncState syncState, boolean isRecovery) {
+    /* Mailbox command that adds a message to its room's outgoing batch; completed when the batch
+     *   is written to the log under a seqnum.
+     */
+    private class SendCommand extends FutureTask<Long> {
+        final String room;
+        final byte[] message;
+
+        SendCommand(String room, byte[] message) {
+            super(DO_NOTHING, null);
+            this.room = room;
+            this.message = message;
+        }
 
-        long syncSession = syncState.getSessionNo(),
-                syncSeqNum = syncState.getSequenceNo();
-        String syncDataPrefix = syncState.getDataPrefix(),
-                syncDataId = syncDataPrefix + "/" + syncSession;
+        @Override
+        public void run() {
+            if (isDone()) return;
+            Room joined = rooms.get(room);
+            if (joined != null) joined.addToBatch(this);
+            else fail(new IOException("not in room " + room));
+        }
 
-        Log.d(TAG, "received" + (isRecovery ? " RECOVERY " : " ") + "sync state for " +
-                syncState.getDataPrefix() + "/" + syncSession + "/" + syncSeqNum);
+        void complete(long seqNum) { set(seqNum); }
+        void fail(Throwable t) { setException(t); }
+    }
 
-        if (syncDataPrefix.equals(this.dataPrefix.toString())) {
-            Log.d(TAG, "ignoring sync state for own user");
-            return;
+    /* Runs a command on the network thread, which is the only thread allowed to use the Face and the
+     *   sync state. Safe to call from any thread; the command is dropped if the thread stops first.
+     */
+    protected Future<?> runOnNetworkThread(Runnable command) {
+        return mailbox.post(command);
+    }
+
+    private boolean hasUnpublishedSeqNums() {
+        for (Room room : rooms.values()) {
+            if (room.hasUnpublishedSeqNums()) return true;
         }
+        return false;
+    }
 
-        if (nextSeqNumToRequest.get(syncDataId) == null && !shouldRetrieveStaleData) {
-            Log.d(TAG, "preventing retrieval of stale data");
-            nextSeqNumToRequest.put(syncDataId, syncSeqNum + 1); // skip requesting seqnum again
+    private int publishSeqNumsIfNeeded() {
+        int publishedCount = 0;
+        for (Room room : rooms.values()) publishedCount += room.publishSeqNums();
+        if (publishedCount > 0 && firstUnpublishedSendNanos != 0) {
+            loopStats.recordPublishDelay(System.nanoTime() - firstUnpublishedSendNanos);
+            firstUnpublishedSendNanos = 0;
         }
-        requestMissingSeqNums(syncDataId, syncSeqNum);
+        return publishedCount;
+    }
 
+    /* Runs the task on the network thread once delayMillis have passed, unless the returned timer
+     *   is cancelled first. Call on the network thread; timers don't outlive it, so applications
+     *   set theirs up again in doApplicationSetup().
+     */
+    protected TimerQueue.Timer schedule(Runnable task, long delayMillis) {
+        return timers.schedule(task, SystemClock.elapsedRealtime() + delayMillis);
     }
 
-    private void requestMissingSeqNums(String syncDataId, long availableSeqNum) {
-        Long seqNumToRequest = nextSeqNumToRequest.get(syncDataId);
-        if (seqNumToRequest == null) seqNumToRequest = 0L;
-        while (availableSeqNum >= seqNumToRequest) {
-            String missingDataNameStr = syncDataId + "/" + seqNumToRequest;
-            Name missingDataName = new Name(missingDataNameStr);
-            Log.d(TAG, "requesting missing seqnum " + seqNumToRequest);
-            expressDataInterest(missingDataName);
-            seqNumToRequest++;
-        }
-        nextSeqNumToRequest.put(syncDataId, seqNumToRequest);
+    /* Tells peers in the room that we're still here by publishing a seqnum in its presence group,
+     *   which they learn of through sync alone, without fetching anything. Call on the network
+     *   thread.
+     */
+    protected void announcePresence(String room) {
+        Room joined = rooms.get(room);
+        if (joined != null) joined.announcePresence();
     }
 
+    /* Called for each message received in a room from a producer, which is identified by its data
+     *   prefix. (session, seqNum, index) says where the message came from: index is its position
+     *   among the messages published under that seqnum (see PayloadFrames), and 0 for a lone
+     *   message.
+     */
+    protected abstract void handleApplicationData(String room, String producer, long session,
+                                                  long seqNum, int index, byte[] receivedData);
+
+    /* Called when count seqnums from the producer could not be fetched and have been given up on. */
+    protected abstract void handleMissingData(String room, String producer, int count);
+
+    /* Called when the producer is seen to still be around, through sync alone: it published a new
+     *   seqnum in either of the room's sync groups. Any data under the seqnum is delivered
+     *   separately, later.
+     */
+    protected abstract void handlePresence(String room, String producer);
+
+    /* Whether the producer, identified by its data prefix, names its data as in DataNames, or is
+     *   an older version of the app that publishes bare messages under /<session>/<seqnum>.
+     */
+    protected abstract boolean namesPayloads(String producer);
+
+    /* Called when an older version of the app asks for one of our seqnums (see DataNames), with
+     *   the messages published under it. Returns them as a single message that version can read,
+     *   or null if there is none.
+     */
+    protected abstract byte[] encodeForOlderPeers(String room, String dataPrefix, long session,
+                                                  List<byte[]> messages);
+
+    /* The application messages in a seqnum's payload, which may be compressed (see
+     *   PayloadCompression) and framed (see PayloadFrames). Network thread only.
+     */
+    private List<byte[]> unpack(byte[] payload) throws IOException {
+        if (PayloadCompression.isCompressed(payload)) payload = compression.decompress(payload);
+        if (!PayloadFrames.isFramed(payload)) return Collections.singletonList(payload);
+        return PayloadFrames.decode(payload);
+    }
 
-    private void expressDataInterest(Name dataName) {
-        Log.d(TAG, "expressing interest for " + dataName.toString());
-        try {
-            face.expressInterest(dataName, OnReceivedSyncData,
-                    OnSyncDataInterestTimeout, OnSyncDataInterestNack);
-        } catch (IOException e) {
-            raiseError("failed to express data interest", ErrorCode.NFD_PROBLEM, e);
+
+    /* A joined room: its pair of sync groups, what we fetch from its producers, and what we
+     *   publish in it under our data prefix there. Only the network thread touches a room, apart
+     *   from the volatile fields.
+     */
+    private class Room {
+        final String name;
+        final Name dataPrefix, broadcastPrefix, presencePrefix;
+        final String dataPrefixUri;
+        private final DataResponder dataResponder;
+
+        private ChronoSync2013 sync;
+        private boolean syncInitialized = false;
+        // a second sync group whose seqnums announce that we're still here, and carry no data
+        private ChronoSync2013 presenceSync;
+        private boolean presenceSyncInitialized = false;
+        // latest presence seqnum of each producer session, by "<data prefix>/<session>"
+        private final HashMap<String, Long> presenceSeqNums = new HashMap<>();
+        private long registeredPrefixId = -1;
+        private final ProducerTable producerTable = new ProducerTable();
+        private final ArrayList<DataFetchCallbacks> dataFetchCallbacks = new ArrayList<>(); // by ID
+        private final FetchPipeline fetchPipeline;
+        // fetches the rest of segmented payloads, apart from fetchPipeline so they don't hold up
+        // the small ones; a SegmentFetch's ID stands in for the producer ID
+        private final FetchPipeline segmentPipeline;
+        private final ArrayList<SegmentFetch> segmentFetches = new ArrayList<>(); // by ID, or null
+        private final HashMap<ProducerTable.Session, Integer> abandonedFetchCounts =
+                new HashMap<>();
+        private SentDataLog sentData;
+        private long nextDataSeqNum;
+        volatile int session;
+        private final ArrayList<SendCommand> batch = new ArrayList<>();
+        private int batchRecordsSize = 0;
+        private TimerQueue.Timer batchTimer, closeTimer;
+        private long lastDataAppendMillis = Long.MIN_VALUE / 2;
+        // a room being left still publishes and serves our data, but fetches nothing
+        private boolean leaving = false, closed = false;
+
+        Room(String name, Name dataPrefix, Name broadcastPrefix, Name presencePrefix) {
+            this.name = name;
+            this.dataPrefix = dataPrefix;
+            this.broadcastPrefix = broadcastPrefix;
+            this.presencePrefix = presencePrefix;
+            dataPrefixUri = dataPrefix.toUri();
+            // after the field initializers, which create the listeners
+            dataResponder = new DataResponder(dataPrefix, encodedDataCache, OlderPeersEncoder);
+            fetchPipeline = new FetchPipeline(DataFetchListener);
+            segmentPipeline = new FetchPipeline(SegmentFetchListener);
         }
-    }
 
-    private int nextDataSeqNum() { return sentData.size(); }
-    private long nextSyncSeqNum() { return sync.getSequenceNo() + 1; }
+        void open() {
+            try {
+                openSentDataLog();
+            } catch (IOException e) {
+                raiseError("unable to open sent data log", ErrorCode.OTHER_EXCEPTION, e);
+                return;
+            }
+            registerDataPrefix();
+            setUpChronoSync();
+        }
 
-    protected abstract void handleApplicationData(byte[] receivedData);
+        void leave() {
+            if (leaving) return;
+            Log.d(TAG, "leaving room " + name);
+            leaving = true;
+            closeTimer = timers.schedule(Close, SystemClock.elapsedRealtime() + ROOM_LINGER_MILLIS);
+        }
 
+        /* Seqnums announced while we were leaving are requested when the next sync state from
+         *   their producer arrives.
+         */
+        void rejoin() {
+            if (!leaving) return;
+            Log.d(TAG, "rejoining room " + name);
+            leaving = false;
+            closeTimer.cancel();
+            closeTimer = null;
+            fillFetchPipeline();
+        }
 
-    /***** Callbacks for NDN network thread *****/
+        private final Runnable Close = new Runnable() {
+            @Override
+            public void run() {
+                closeTimer = null;
+                close();
+            }
+        };
+
+        /* Publishes anything still batched, then stops syncing and serving the room. Replies to
+         *   interests expressed before are ignored.
+         */
+        void close() {
+            Log.d(TAG, "closing room " + name);
+            if (!batch.isEmpty()) flushBatch(SystemClock.elapsedRealtime());
+            if (closeTimer != null) closeTimer.cancel();
+            closeTimer = null;
+            closed = true;
+            syncInitialized = presenceSyncInitialized = false;
+            if (sync != null) sync.shutdown();
+            if (presenceSync != null) presenceSync.shutdown();
+            if (registeredPrefixId != -1) face.removeRegisteredPrefix(registeredPrefixId);
+            if (sentData != null) sentData.close();
+            sync = presenceSync = null;
+            sentData = null;
+            rooms.remove(name, this);
+        }
 
-    private final OnInterestCallback OnDataInterest = new OnInterestCallback() {
-        @Override
-        public void onInterest(Name prefix, Interest interest, Face face, long interestFilterId,
-                               InterestFilter filterData) {
-            Name interestName = interest.getName();
-
-            Name.Component seqNumComponent = interestName.get(-1);
-            Name.Component sessionComponent = interestName.get(-2);
-            int requestedSeqNum = Integer.parseInt(seqNumComponent.toEscapedString());
-            long requestedSession = Long.parseLong(sessionComponent.toEscapedString());
-
-            if (session == requestedSession && requestedSeqNum < nextDataSeqNum()) {
-                Log.d(TAG, "responding to data interest: " + interestName.toString());
-                byte[] requestedData = sentData.get(requestedSeqNum);
-                Data response = new Data(interestName);
-                Blob content = new Blob(requestedData);
-                response.setContent(content);
+        /* Opens the log of data published under our data prefix, which survives service restarts
+         *   so that peers can still fetch what we sent in earlier sessions, and picks a session
+         *   number that isn't in it yet.
+         */
+        private void openSentDataLog() throws IOException {
+            File logsDirectory = new File(getFilesDir(), SENT_DATA_DIRECTORY),
+                 logDirectory = new File(logsDirectory, URLEncoder.encode(dataPrefixUri, "UTF-8"));
+            SentDataLog.deleteStaleLogs(logsDirectory, logDirectory, SENT_DATA_MAX_AGE_MILLIS);
+            sentData = new SentDataLog(logDirectory);
+            int session = (int) (System.currentTimeMillis() / 1000);
+            while (sentData.hasSession(session)) session++;
+            this.session = session;
+            nextDataSeqNum = 0;
+            Log.d(TAG, "sent data log opened; session is " + session);
+        }
+
+        private void registerDataPrefix () {
+            Log.d(TAG, "registering data prefix...");
+            try {
+                registeredPrefixId = face.registerPrefix(dataPrefix, OnDataInterest,
+                        OnDataPrefixRegisterFailed, OnDataPrefixRegisterSuccess);
+            } catch (IOException | SecurityException e) {
+                // should also be handled in callback, but in just in case...
+                raiseError("exception registering data prefix", ErrorCode.NFD_PROBLEM, e);
+            }
+
+        }
+
+        private void setUpChronoSync() {
+            try {
+                sync = new ChronoSync2013(OnReceivedChronoSyncState, OnChronoSyncInitialized,
+                        dataPrefix, broadcastPrefix, session, face, keyChain,
+                        keyChain.getDefaultCertificateName(), SYNC_LIFETIME,
+                        OnBroadcastPrefixRegisterFailed);
+                presenceSync = new ChronoSync2013(OnReceivedPresenceSyncState,
+                        OnPresenceSyncInitialized, dataPrefix, presencePrefix, session, face,
+                        keyChain, keyChain.getDefaultCertificateName(), SYNC_LIFETIME,
+                        OnBroadcastPrefixRegisterFailed);
+            } catch (IOException | SecurityException e) {
+                // should also be handled in callback, but in just in case...
+                raiseError("exception setting up ChronoSync", ErrorCode.NFD_PROBLEM, e);
+            }
+        }
+
+        void addToBatch(SendCommand command) {
+            int recordSize = PayloadFrames.getRecordSize(command.message);
+            if (!batch.isEmpty() && PayloadFrames.getFrameSize(batch.size() + 1,
+                    batchRecordsSize + recordSize) > MAX_BATCH_PAYLOAD_SIZE) {
+                flushBatch(SystemClock.elapsedRealtime());
+            }
+            batch.add(command);
+            batchRecordsSize += recordSize;
+            if (nextDataSeqNum == 0 && !syncInitialized) {
+                // the session's first message (the JOIN) must be in the log under seqnum 0 before
+                // ChronoSync initializes, since that is when it advertises seqnum 0
+                flushBatch(SystemClock.elapsedRealtime());
+            } else if (batchTimer == null) {
+                batchTimer = timers.schedule(FlushBatch, getBatchDeadline());
+            }
+        }
+
+        private long getBatchDeadline() {
+            return lastDataAppendMillis + batchWindowMillis;
+        }
+
+        private final Runnable FlushBatch = new Runnable() {
+            @Override
+            public void run() {
+                batchTimer = null;
+                if (!batch.isEmpty()) flushBatch(SystemClock.elapsedRealtime());
+            }
+        };
+
+        /* Writes the batched messages to the log under a single seqnum. A lone message is written
+         *   as is, without a frame. Large payloads are compressed, and served in segments if they
+         *   still don't fit in a Data packet (see PayloadSegments).
+         */
+        private void flushBatch(long now) {
+            byte[] payload;
+            if (batch.size() == 1) {
+                payload = batch.get(0).message;
+            } else {
+                ArrayList<byte[]> messages = new ArrayList<>(batch.size());
+                for (SendCommand command : batch) messages.add(command.message);
+                payload = PayloadFrames.encode(messages);
+                Log.d(TAG, "batched " + batch.size() + " messages into " + payload.length +
+                        " bytes");
+            }
+            payload = compression.compress(payload);
+            if (payload.length > PayloadSegments.MAX_PAYLOAD_SIZE) {
+                // only a lone message can get this big, and peers wouldn't fetch that many segments
+                Log.e(TAG, "dropping " + payload.length + "-byte message, too large to publish");
+                for (SendCommand command : batch)
+                    command.fail(new IOException("message too large"));
+                clearBatch();
+                return;
+            }
+
+            long seqNum = nextDataSeqNum++;
+            try {
+                sentData.append(session, seqNum, payload);
+                for (SendCommand command : batch) command.complete(seqNum);
+            } catch (IOException e) {
+                for (SendCommand command : batch) command.fail(e);
+                raiseError("failed to store sent data", ErrorCode.OTHER_EXCEPTION, e);
+            }
+            clearBatch();
+            lastDataAppendMillis = now;
+        }
+
+        void cancelBatch() {
+            for (SendCommand command : batch) command.cancel(false);
+            clearBatch();
+        }
+
+        private void clearBatch() {
+            batch.clear();
+            batchRecordsSize = 0;
+            if (batchTimer != null) batchTimer.cancel();
+            batchTimer = null;
+        }
+
+        boolean hasUnpublishedSeqNums() {
+            return syncInitialized && nextDataSeqNum > nextSyncSeqNum();
+        }
+
+        int publishSeqNums() {
+            if (!syncInitialized) return 0;
+            int publishedCount = 0;
+            while(nextSyncSeqNum() < nextDataSeqNum) {
+                long seqNumToPublish = nextSyncSeqNum();
                 try {
-                    face.putData(response);
-                } catch (IOException e) {
-                    raiseError("failure when responding to data interest",
+                    sync.publishNextSequenceNo();
+                    publishedCount++;
+                    Log.d(TAG, "published seqnum " + seqNumToPublish + " in " + name);
+                } catch (IOException | SecurityException e) {
+                    raiseError("failed to publish seqnum " + seqNumToPublish,
                             ErrorCode.NFD_PROBLEM, e);
+                    break;
                 }
-            } else {
-                Log.d(TAG, "ignored data interest: " + interestName.toString() +
-                        "\ncurrent session = " + session + ", available seqnum = " +
-                        (nextDataSeqNum() - 1));
             }
+            return publishedCount;
         }
-    };
 
-    private final ChronoSync2013.OnReceivedSyncState OnReceivedChronoSyncState =
-            new ChronoSync2013.OnReceivedSyncState() {
-                @Override
-                public void onReceivedSyncState(List syncStates, boolean isRecovery) {
-                    Log.d(TAG, "sync states received");
-                    for (Object syncState : syncStates) {
-                        processSyncState((ChronoSync2013.SyncState) syncState, isRecovery);
+        private long nextSyncSeqNum() { return sync.getSequenceNo() + 1; }
+
+        private void processSyncState(ChronoSync2013.SyncState syncState, boolean isRecovery) {
+
+            long syncSession = syncState.getSessionNo(),
+                    syncSeqNum = syncState.getSequenceNo();
+            String syncDataPrefix = syncState.getDataPrefix();
+
+            Log.d(TAG, "received" + (isRecovery ? " RECOVERY " : " ") + "sync state for " +
+                    syncDataPrefix + "/" + syncSession + "/" + syncSeqNum);
+
+            if (syncDataPrefix.equals(dataPrefixUri)) {
+                Log.d(TAG, "ignoring sync state for own user");
+                return;
+            }
+            if (leaving) return;
+
+            // the first state seen may be stale (see processPresenceSyncState); later ones are news
+            if (producerTable.onSyncState(syncDataPrefix, syncSession, syncSeqNum,
+                    shouldRetrieveStaleData, fetchPipeline)) {
+                handlePresence(name, syncDataPrefix);
+            }
+
+        }
+
+        /* A producer is present when its seqnum in the presence group advances. The first seqnum
+         *   seen from a producer session says nothing, since sync groups never forget a producer
+         *   and a new member is told about everyone who was ever in the group.
+         */
+        private void processPresenceSyncState(ChronoSync2013.SyncState syncState) {
+            String producer = syncState.getDataPrefix();
+            if (producer.equals(dataPrefixUri) || leaving) return;
+            String key = producer + "/" + syncState.getSessionNo();
+            long seqNum = syncState.getSequenceNo();
+            Long previous = presenceSeqNums.get(key);
+            if (previous != null && seqNum <= previous) return;
+            presenceSeqNums.put(key, seqNum);
+            if (previous != null) handlePresence(name, producer);
+        }
+
+        void announcePresence() {
+            if (!presenceSyncInitialized) return;
+            try {
+                presenceSync.publishNextSequenceNo();
+            } catch (IOException | SecurityException e) {
+                raiseError("failed to announce presence", ErrorCode.NFD_PROBLEM, e);
+            }
+        }
+
+        long getFetchDeadline(long now) {
+            if (leaving) return FetchPipeline.NO_DEADLINE;
+            return Math.min(fetchPipeline.getNextDeadline(now),
+                    segmentPipeline.getNextDeadline(now));
+        }
+
+        int fillFetchPipeline() {
+            if (leaving || closed) return 0;
+            int expressedCount = 0;
+            try {
+                long now = SystemClock.elapsedRealtime();
+                expressedCount = fetchPipeline.fill(now) + segmentPipeline.fill(now);
+            } catch (IOException e) {
+                raiseError("failed to express data interest", ErrorCode.NFD_PROBLEM, e);
+            }
+            reportAbandonedFetches();
+            return expressedCount;
+        }
+
+        private void reportAbandonedFetches() {
+            if (abandonedFetchCounts.isEmpty()) return;
+            for (ProducerTable.Session producer : abandonedFetchCounts.keySet()) {
+                int count = abandonedFetchCounts.get(producer);
+                Log.d(TAG, "gave up fetching " + count + " seqnums from " + producer.name);
+                handleMissingData(name, producer.dataPrefix, count);
+            }
+            abandonedFetchCounts.clear();
+        }
+
+        private void expressDataInterest(ProducerTable.Session producer, long seqNum,
+                                         long lifetimeMillis) throws IOException {
+            DataFetchCallbacks callbacks = getDataFetchCallbacks(producer);
+            Interest interest = DataNames.makeInterest(callbacks.sessionName, seqNum,
+                    lifetimeMillis);
+            if (logPackets) Log.v(TAG, "expressing interest for " + interest.getName());
+            face.expressInterest(interest, callbacks, callbacks, callbacks);
+        }
+
+        private DataFetchCallbacks getDataFetchCallbacks(ProducerTable.Session producer) {
+            while (dataFetchCallbacks.size() <= producer.id) dataFetchCallbacks.add(null);
+            DataFetchCallbacks callbacks = dataFetchCallbacks.get(producer.id);
+            if (callbacks == null) {
+                callbacks = new DataFetchCallbacks(producer);
+                dataFetchCallbacks.set(producer.id, callbacks);
+            }
+            return callbacks;
+        }
+
+        /* Serves older versions of the app what they can read of our payloads (see DataNames). */
+        private final DataResponder.OlderPeersEncoder OlderPeersEncoder =
+                new DataResponder.OlderPeersEncoder() {
+                    @Override
+                    public byte[] encode(long session, byte[] payload) {
+                        try {
+                            return encodeForOlderPeers(name, dataPrefixUri, session,
+                                    unpack(payload));
+                        } catch (IOException e) {
+                            Log.e(TAG, "unable to read our own payload in session " + session,
+                                    e);
+                            return null;
+                        }
                     }
-                    Log.d(TAG, "finished processing " + syncStates.size() + " sync states");
-                }
-            };
-
-    private final ChronoSync2013.OnInitialized OnChronoSyncInitialized =
-            new ChronoSync2013.OnInitialized() {
-                @Override
-                public void onInitialized() {
-                    Log.d(TAG, "ChronoSync initialization complete; seqnum is now " +
-                            sync.getSequenceNo());
-                    // Ensure that sentData is in sync with the initial seqnum
-                    while (nextDataSeqNum() < nextSyncSeqNum()) {
-                        sentData.add(null);
+                };
+
+        private void deliverApplicationData(ProducerTable.Session producer, long seqNum,
+                                            byte[] content) {
+            List<byte[]> messages;
+            try {
+                messages = unpack(content);
+            } catch (IOException e) {
+                Log.e(TAG, "dropping malformed payload from " + producer.name, e);
+                return;
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                handleApplicationData(name, producer.dataPrefix, producer.session, seqNum, i,
+                        messages.get(i));
+            }
+        }
+
+
+        /***** Callbacks for NDN network thread *****/
+
+        private final OnInterestCallback OnDataInterest = new OnInterestCallback() {
+            @Override
+            public void onInterest(Name prefix, Interest interest, Face face,
+                                   long interestFilterId, InterestFilter filterData) {
+                if (closed) return;
+                Name interestName = interest.getName();
+                Blob encoding = dataResponder.respond(interestName, sentData);
+                if (encoding != null) {
+                    if (logPackets) Log.v(TAG, "responding to data interest: " + interestName);
+                    try {
+                        face.send(encoding);
+                    } catch (IOException e) {
+                        raiseError("failure when responding to data interest",
+                                ErrorCode.NFD_PROBLEM, e);
                     }
-                    syncInitialized = true;
+                } else {
+                    Log.d(TAG, "ignored data interest: " + interestName.toString() +
+                            "\ncurrent session = " + session + ", available seqnum = " +
+                            (nextDataSeqNum - 1));
                 }
-            };
+            }
+        };
+
+        private final ChronoSync2013.OnReceivedSyncState OnReceivedChronoSyncState =
+                new ChronoSync2013.OnReceivedSyncState() {
+                    @Override
+                    public void onReceivedSyncState(List syncStates, boolean isRecovery) {
+                        Log.d(TAG, "sync states received");
+                        for (Object syncState : syncStates) {
+                            processSyncState((ChronoSync2013.SyncState) syncState, isRecovery);
+                        }
+                        fillFetchPipeline();
+                        Log.d(TAG, "finished processing " + syncStates.size() + " sync states");
+                    }
+                };
+
+        private final ChronoSync2013.OnReceivedSyncState OnReceivedPresenceSyncState =
+                new ChronoSync2013.OnReceivedSyncState() {
+                    @Override
+                    public void onReceivedSyncState(List syncStates, boolean isRecovery) {
+                        for (Object syncState : syncStates) {
+                            processPresenceSyncState((ChronoSync2013.SyncState) syncState);
+                        }
+                    }
+                };
+
+        private final ChronoSync2013.OnInitialized OnPresenceSyncInitialized =
+                new ChronoSync2013.OnInitialized() {
+                    @Override
+                    public void onInitialized() {
+                        Log.d(TAG, "presence sync initialization complete");
+                        presenceSyncInitialized = !closed;
+                    }
+                };
+
+        private final ChronoSync2013.OnInitialized OnChronoSyncInitialized =
+                new ChronoSync2013.OnInitialized() {
+                    @Override
+                    public void onInitialized() {
+                        if (closed) return;
+                        Log.d(TAG, "ChronoSync initialization complete; seqnum is now " +
+                                sync.getSequenceNo());
+                        // Ensure that sentData is in sync with the initial seqnum
+                        if (nextDataSeqNum < nextSyncSeqNum()) nextDataSeqNum = nextSyncSeqNum();
+                        syncInitialized = true;
+                    }
+                };
 
-    private final OnRegisterSuccess OnDataPrefixRegisterSuccess = new OnRegisterSuccess() {
-        @Override
-        public void onRegisterSuccess(Name prefix, long registeredPrefixId) {
-            Log.d(TAG, "successfully registered data prefix: " + prefix);
-        }
-    };
+        private final OnRegisterSuccess OnDataPrefixRegisterSuccess = new OnRegisterSuccess() {
+            @Override
+            public void onRegisterSuccess(Name prefix, long registeredPrefixId) {
+                Log.d(TAG, "successfully registered data prefix: " + prefix);
+            }
+        };
 
-    private final OnRegisterFailed OnDataPrefixRegisterFailed = new OnRegisterFailed() {
-        @Override
-        public void onRegisterFailed(Name prefix) {
-            raiseError("failed to register application prefix " + prefix.toString(),
-                    ErrorCode.NFD_PROBLEM);
-        }
-    };
+        private final OnRegisterFailed OnDataPrefixRegisterFailed = new OnRegisterFailed() {
+            @Override
+            public void onRegisterFailed(Name prefix) {
+                raiseError("failed to register application prefix " + prefix.toString(),
+                        ErrorCode.NFD_PROBLEM);
+            }
+        };
 
-    private final OnRegisterFailed OnBroadcastPrefixRegisterFailed = new OnRegisterFailed() {
-        @Override
-        public void onRegisterFailed(Name prefix) {
-            raiseError("failed to register broadcast prefix " + prefix.toString(),
-                    ErrorCode.NFD_PROBLEM);
+        private final OnRegisterFailed OnBroadcastPrefixRegisterFailed = new OnRegisterFailed() {
+            @Override
+            public void onRegisterFailed(Name prefix) {
+                raiseError("failed to register broadcast prefix " + prefix.toString(),
+                        ErrorCode.NFD_PROBLEM);
+            }
+        };
+
+        private final FetchPipeline.Listener DataFetchListener = new FetchPipeline.Listener() {
+            @Override
+            public void expressInterest(int producerId, long seqNum, long lifetimeMillis)
+                    throws IOException {
+                expressDataInterest(producerTable.get(producerId), seqNum, lifetimeMillis);
+            }
+
+            @Override
+            public void onFetchAbandoned(int producerId, long seqNum) {
+                recordAbandonedFetch(producerTable.get(producerId), seqNum);
+            }
+        };
+
+        private final FetchPipeline.Listener SegmentFetchListener = new FetchPipeline.Listener() {
+            @Override
+            public void expressInterest(int fetchId, long segment, long lifetimeMillis)
+                    throws IOException {
+                segmentFetches.get(fetchId).expressInterest(segment, lifetimeMillis);
+            }
+
+            @Override
+            public void onFetchAbandoned(int fetchId, long segment) {
+                SegmentFetch fetch = segmentFetches.get(fetchId);
+                if (fetch == null) return; // the rest of a fetch already given up on
+                Log.d(TAG, "gave up fetching segment " + segment + " of " + fetch.name);
+                fetch.end();
+                recordAbandonedFetch(fetch.source.producer, fetch.seqNum);
+            }
+        };
+
+        private void recordAbandonedFetch(ProducerTable.Session producer, long seqNum) {
+            if (!producerTable.markAbandoned(producer, seqNum)) return;
+            Integer count = abandonedFetchCounts.get(producer);
+            abandonedFetchCounts.put(producer, (count == null) ? 1 : count + 1);
         }
-    };
 
-    private final OnData OnReceivedSyncData = new OnData() {
-        @Override
-        public void onData(Interest interest, Data data) {
-            Name name = data.getName();
-            byte[] content = data.getContent().getImmutableArray();
-            Log.d(TAG, "received sync data for " + name);
-            handleApplicationData(content);
+        /* Replies to the data interests for one producer session. Keeping one set of callbacks
+         *   per producer means replies don't have to be matched back to the producer by name.
+         */
+        private class DataFetchCallbacks implements OnData, OnTimeout, OnNetworkNack {
+            final ProducerTable.Session producer;
+            final long producerHash;
+            final Name sessionName; // what the seqnums we ask for go after (see DataNames)
+
+            DataFetchCallbacks(ProducerTable.Session producer) {
+                this.producer = producer;
+                producerHash = DuplicateFilter.hashProducer(producer.name);
+                sessionName = DataNames.getSessionName(producer.dataPrefix, producer.session,
+                        namesPayloads(producer.dataPrefix));
+            }
+
+            @Override
+            public void onData(Interest interest, Data data) {
+                if (closed) return;
+                long seqNum = NameComponents.toDecimal(interest.getName().get(-1));
+                if (logPackets) Log.v(TAG, "received sync data for " + data.getName());
+                fetchPipeline.onData(producer.id, seqNum, SystemClock.elapsedRealtime());
+                if (data.getName().size() > interest.getName().size()) {
+                    startSegmentFetch(interest.getName(), seqNum, data);
+                } else {
+                    receive(seqNum, data.getContent().getImmutableArray(), data.getName());
+                }
+                fillFetchPipeline();
+            }
+
+            /* Called with the whole payload of one of the producer's seqnums. */
+            void receive(long seqNum, byte[] content, Name name) {
+                boolean firstArrival = producerTable.markReceived(producer, seqNum);
+                firstArrival &= duplicateFilter.add(producerHash, seqNum); // records it either way
+                if (firstArrival) {
+                    deliverApplicationData(producer, seqNum, content);
+                } else {
+                    loopStats.recordDuplicate();
+                    if (logPackets) Log.v(TAG, "dropping duplicate data " + name);
+                }
+            }
+
+            /* firstSegment answered the interest for the bare seqnum; see PayloadSegments. */
+            private void startSegmentFetch(Name seqNumName, long seqNum, Data firstSegment) {
+                Name name = firstSegment.getName();
+                if (producer.isReceived(seqNum) || findSegmentFetch(producer, seqNum) != null) {
+                    loopStats.recordDuplicate();
+                    if (logPackets) Log.v(TAG, "dropping duplicate data " + name);
+                    return;
+                }
+                PayloadSegments.Reassembly reassembly;
+                try {
+                    if (name.size() != seqNumName.size() + 1 ||
+                            PayloadSegments.toSegment(name.get(-1)) != 0)
+                        throw new IOException("not segment 0");
+                    long lastSegment = PayloadSegments.toSegment(
+                            firstSegment.getMetaInfo().getFinalBlockId());
+                    reassembly = new PayloadSegments.Reassembly(lastSegment,
+                            firstSegment.getContent().buf());
+                } catch (IOException e) {
+                    Log.e(TAG, "dropping malformed segment " + name, e);
+                    recordAbandonedFetch(producer, seqNum);
+                    return;
+                }
+                SegmentFetch fetch = new SegmentFetch(this, seqNum, seqNumName, reassembly);
+                if (reassembly.isComplete()) {
+                    fetch.end();
+                    receive(seqNum, reassembly.getPayload(), fetch.name);
+                } else {
+                    segmentPipeline.request(fetch.id, 1, reassembly.getLastSegment());
+                }
+            }
+
+            @Override
+            public void onTimeout(Interest interest) {
+                if (closed) return;
+                Log.d(TAG, "timed out waiting for " + interest.getName());
+                long seqNum = NameComponents.toDecimal(interest.getName().get(-1));
+                fetchPipeline.onTimeout(producer.id, seqNum, SystemClock.elapsedRealtime());
+                fillFetchPipeline();
+            }
+
+            @Override
+            public void onNetworkNack(Interest interest, NetworkNack networkNack) {
+                if (closed) return;
+                Log.d(TAG, "received NACK for " + interest.getName() + ", reason: " +
+                        networkNack.getReason());
+                long seqNum = NameComponents.toDecimal(interest.getName().get(-1));
+                fetchPipeline.onNack(producer.id, seqNum, SystemClock.elapsedRealtime());
+                fillFetchPipeline();
+            }
         }
-    };
 
-    private final OnTimeout OnSyncDataInterestTimeout = new OnTimeout() {
-        @Override
-        public void onTimeout(Interest interest) {
-            Name name = interest.getName();
-            Log.d(TAG, "timed out waiting for " + name);
-            expressDataInterest(name);
+        private SegmentFetch findSegmentFetch(ProducerTable.Session producer, long seqNum) {
+            for (SegmentFetch fetch : segmentFetches) {
+                if (fetch != null && fetch.source.producer == producer && fetch.seqNum == seqNum)
+                    return fetch;
+            }
+            return null;
         }
-    };
 
-    private final OnNetworkNack OnSyncDataInterestNack = new OnNetworkNack() {
-        @Override
-        public void onNetworkNack(Interest interest, NetworkNack networkNack) {
-            Name name = interest.getName();
-            Log.d(TAG, "received NACK for " + name);
+        /* Fetches the rest of a segmented payload through segmentPipeline and reassembles it. Its
+         *   ID is the lowest free index in segmentFetches, which it holds until end() is called;
+         *   replies that come in after that are ignored.
+         */
+        private class SegmentFetch implements OnData, OnTimeout, OnNetworkNack {
+            final DataFetchCallbacks source;
+            final long seqNum;
+            final Name name; // of the seqnum, which the segment numbers go after
+            final PayloadSegments.Reassembly reassembly;
+            final int id;
+
+            SegmentFetch(DataFetchCallbacks source, long seqNum, Name name,
+                         PayloadSegments.Reassembly reassembly) {
+                this.source = source;
+                this.seqNum = seqNum;
+                this.name = name;
+                this.reassembly = reassembly;
+                int freeId = segmentFetches.indexOf(null);
+                if (freeId < 0) {
+                    freeId = segmentFetches.size();
+                    segmentFetches.add(this);
+                } else {
+                    segmentFetches.set(freeId, this);
+                }
+                id = freeId;
+            }
+
+            void expressInterest(long segment, long lifetimeMillis) throws IOException {
+                Interest interest = new Interest(name);
+                interest.getName().appendSegment(segment);
+                interest.setInterestLifetimeMilliseconds(lifetimeMillis);
+                if (logPackets) Log.v(TAG, "expressing interest for " + interest.getName());
+                face.expressInterest(interest, this, this, this);
+            }
+
+            void end() {
+                segmentFetches.set(id, null);
+                segmentPipeline.cancel(id);
+            }
+
+            private boolean isCurrent() {
+                return !closed && id < segmentFetches.size() && segmentFetches.get(id) == this;
+            }
+
+            @Override
+            public void onData(Interest interest, Data data) {
+                if (!isCurrent()) return;
+                long segment = PayloadSegments.toSegment(interest.getName().get(-1));
+                if (logPackets) Log.v(TAG, "received segment " + data.getName());
+                segmentPipeline.onData(id, segment, SystemClock.elapsedRealtime());
+                try {
+                    reassembly.add(segment, data.getContent().buf());
+                    if (reassembly.isComplete()) {
+                        end();
+                        source.receive(seqNum, reassembly.getPayload(), name);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "dropping malformed segment " + data.getName(), e);
+                    end();
+                    recordAbandonedFetch(source.producer, seqNum);
+                }
+                fillFetchPipeline();
+            }
+
+            @Override
+            public void onTimeout(Interest interest) {
+                if (!isCurrent()) return;
+                Log.d(TAG, "timed out waiting for " + interest.getName());
+                long segment = PayloadSegments.toSegment(interest.getName().get(-1));
+                segmentPipeline.onTimeout(id, segment, SystemClock.elapsedRealtime());
+                fillFetchPipeline();
+            }
+
+            @Override
+            public void onNetworkNack(Interest interest, NetworkNack networkNack) {
+                if (!isCurrent()) return;
+                Log.d(TAG, "received NACK for " + interest.getName() + ", reason: " +
+                        networkNack.getReason());
+                long segment = PayloadSegments.toSegment(interest.getName().get(-1));
+                segmentPipeline.onNack(id, segment, SystemClock.elapsedRealtime());
+                fillFetchPipeline();
+            }
         }
-    };
+    }
 }
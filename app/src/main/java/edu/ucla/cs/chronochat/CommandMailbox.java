@@ -0,0 +1,83 @@
+package edu.ucla.cs.chronochat;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/* Queue of commands that any thread can post and only the network thread runs. Anything that
+ *   touches the Face, ChronoSync or the sync bookkeeping from outside the network thread must go
+ *   through here instead. ConcurrentLinkedQueue is lock-free, so posting never blocks the caller.
+ */
+class CommandMailbox {
+
+    private static final String TAG = "CommandMailbox";
+
+    private final ConcurrentLinkedQueue<FutureTask<?>> commands = new ConcurrentLinkedQueue<>();
+    private final Runnable onPost;
+
+
+    /* onPost is run after every post (from the posting thread) to wake up the consumer. */
+    CommandMailbox(Runnable onPost) {
+        this.onPost = onPost;
+    }
+
+    <T> Future<T> post(Callable<T> command) {
+        return post(new FutureTask<>(command));
+    }
+
+    Future<?> post(Runnable command) {
+        return post(new FutureTask<Void>(command, null));
+    }
+
+    /* Posts a task that may complete later than when it is run, e.g. by calling set() from a
+     *   subclass once the work it started has finished.
+     */
+    <T> Future<T> post(FutureTask<T> task) {
+        commands.offer(task);
+        onPost.run();
+        return task;
+    }
+
+    /* Runs every command posted so far on the calling thread and returns how many were run. An
+     *   exception thrown by a command is delivered through its Future, and logged here so that it
+     *   isn't silently lost when the poster ignores the Future; a failed command is the poster's
+     *   business, not the consumer's. Only Errors are rethrown.
+     */
+    int drain() {
+        int count = 0;
+        FutureTask<?> task;
+        while ((task = commands.poll()) != null) {
+            task.run();
+            count++;
+            if (!task.isDone()) continue;
+            try {
+                task.get(); // already done, so this doesn't block
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                Log.w(TAG, "network thread command failed", cause);
+            } catch (InterruptedException | CancellationException e) {
+                // not possible for a task that has just run
+            }
+        }
+        return count;
+    }
+
+    /* Cancels every command that hasn't been run yet, e.g. because the consumer is shutting down. */
+    void cancelPending() {
+        FutureTask<?> task;
+        while ((task = commands.poll()) != null) {
+            task.cancel(false);
+        }
+    }
+
+    boolean isEmpty() {
+        return commands.isEmpty();
+    }
+}
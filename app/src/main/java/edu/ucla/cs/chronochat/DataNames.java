@@ -0,0 +1,68 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.Name;
+
+
+/* How the Data published under a data prefix is named.
+ *
+ *   A seqnum's payload, as written to the SentDataLog, is named
+ *   /<data prefix>/<marker>/<session>/<seqnum>, with a /<segment> after that if it's segmented
+ *   (see PayloadSegments). The marker is a version component, PAYLOAD_VERSION. The payload may
+ *   be framed, compressed or hold messages in a compact format, none of which older versions of
+ *   the app can read.
+ *
+ *   Those older versions fetch /<data prefix>/<session>/<seqnum>, which can't match a payload's
+ *   name even as a prefix. Under it we serve them the seqnum's messages in a form they can read,
+ *   if the application has one (see ChronoSyncService.encodeForOlderPeers()), in a single packet.
+ */
+final class DataNames {
+
+    static final long PAYLOAD_VERSION = 2;
+    static final Name.Component PAYLOAD_MARKER = Name.Component.fromVersion(PAYLOAD_VERSION);
+
+    private DataNames() { }
+
+    /* The name that a producer session's seqnums go after: that of its payloads, or else what it
+     *   serves older versions.
+     */
+    static Name getSessionName(String dataPrefix, long session, boolean payloads) {
+        Name name = new Name(dataPrefix);
+        if (payloads) name.append(PAYLOAD_MARKER);
+        return name.append(NameComponents.fromDecimal(session));
+    }
+
+    static Interest makeInterest(Name sessionName, long seqNum, long lifetimeMillis) {
+        // the Interest copies the name, so the seqnum is appended to the copy
+        Interest interest = new Interest(sessionName);
+        interest.getName().append(NameComponents.fromDecimal(seqNum));
+        interest.setInterestLifetimeMilliseconds(lifetimeMillis);
+        return interest;
+    }
+
+    /* What a data interest asks for, as read by parse(). Can be reused from one to the next. */
+    static final class Request {
+        boolean payload; // or else what older versions are served
+        long session, seqNum, segment;
+    }
+
+    /* Reads the name of an interest under dataPrefix into request. Returns false if it isn't one
+     *   of the names above.
+     */
+    static boolean parse(Name dataPrefix, Name interestName, Request request) {
+        int index = dataPrefix.size(), size = interestName.size();
+        request.payload = size > index && interestName.get(index).equals(PAYLOAD_MARKER);
+        if (request.payload) index++;
+        request.segment = PayloadSegments.NO_SEGMENT;
+        if (request.payload && size == index + 3) {
+            request.segment = PayloadSegments.toSegment(interestName.get(-1));
+            if (request.segment == PayloadSegments.NO_SEGMENT) return false;
+        } else if (size != index + 2) {
+            return false;
+        }
+        request.session = NameComponents.toDecimal(interestName.get(index));
+        request.seqNum = NameComponents.toDecimal(interestName.get(index + 1));
+        return request.session != NameComponents.NOT_A_NUMBER &&
+                request.seqNum != NameComponents.NOT_A_NUMBER;
+    }
+}
@@ -0,0 +1,105 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Data;
+import net.named_data.jndn.Name;
+import net.named_data.jndn.util.Blob;
+
+import java.nio.ByteBuffer;
+
+
+/* Answers the interests for what we publish under a data prefix (see DataNames) with the Data's
+ *   wire encoding, from the encoded data cache or, on a miss, from the sent data log. The log also
+ *   holds sessions from before a restart, so peers can still repair from us.
+ *
+ *   Not thread-safe; the network thread owns it.
+ */
+class DataResponder {
+
+    /* Re-encodes a payload for older versions of the app (see DataNames). */
+    interface OlderPeersEncoder {
+        /* Returns a single message that version can read, or null if there is none. */
+        byte[] encode(long session, byte[] payload);
+    }
+
+    private final Name dataPrefix;
+    // tell our data in different rooms, and served under either name, apart in the cache
+    private final long payloadsHash, olderPeersHash;
+    private final EncodedDataCache encodedDataCache;
+    private final OlderPeersEncoder olderPeersEncoder;
+    private final DataNames.Request request = new DataNames.Request();
+
+
+    DataResponder(Name dataPrefix, EncodedDataCache encodedDataCache,
+                  OlderPeersEncoder olderPeersEncoder) {
+        this.dataPrefix = dataPrefix;
+        this.encodedDataCache = encodedDataCache;
+        this.olderPeersEncoder = olderPeersEncoder;
+        payloadsHash = DuplicateFilter.hashProducer(
+                new Name(dataPrefix).append(DataNames.PAYLOAD_MARKER).toUri());
+        olderPeersHash = DuplicateFilter.hashProducer(dataPrefix.toUri());
+    }
+
+    /* Returns the encoded Data answering the interest, or null if the name isn't one of ours or
+     *   names nothing in sentData.
+     */
+    Blob respond(Name interestName, SentDataLog sentData) {
+        if (!DataNames.parse(dataPrefix, interestName, request)) return null;
+        long prefixHash = request.payload ? payloadsHash : olderPeersHash;
+        Blob encoding = encodedDataCache.get(prefixHash, request.session, request.seqNum,
+                request.segment);
+        if (encoding != null) return encoding;
+
+        ByteBuffer requestedData = sentData.get(request.session, request.seqNum);
+        if (requestedData == null) return null;
+        if (request.payload) {
+            encoding = encodeData(interestName, requestedData, request.segment);
+        } else {
+            encoding = encodeDataForOlderPeers(interestName, request.session, requestedData);
+        }
+        if (encoding != null) {
+            encodedDataCache.put(prefixHash, request.session, request.seqNum, request.segment,
+                    encoding);
+        }
+        return encoding;
+    }
+
+    /* Encodes the Data answering an interest for a seqnum's payload, or for the given segment of
+     *   it (see PayloadSegments). Returns null if the payload has no such segment.
+     */
+    static Blob encodeData(Name interestName, ByteBuffer payload, long segment) {
+        int segmentCount = PayloadSegments.getSegmentCount(payload.remaining());
+        Data response;
+        if (segmentCount == 1) {
+            if (segment != PayloadSegments.NO_SEGMENT) return null;
+            response = new Data(interestName);
+            response.setContent(new Blob(payload, false)); // no copy of the mapped log
+        } else {
+            if (segment >= segmentCount) return null;
+            response = new Data(interestName);
+            if (segment == PayloadSegments.NO_SEGMENT) {
+                segment = 0;
+                response.getName().appendSegment(0);
+            }
+            ByteBuffer content = PayloadSegments.getSegment(payload, (int) segment);
+            response.setContent(new Blob(content, false));
+            response.getMetaInfo().setFinalBlockId(Name.Component.fromSegment(segmentCount - 1));
+        }
+        // the exact bytes putData() would send
+        return response.wireEncode();
+    }
+
+    /* Encodes the Data answering an older version of the app's interest for one of our seqnums.
+     *   Returns null if there is nothing that version can read, or nothing that fits in one
+     *   packet, which is all it would fetch.
+     */
+    private Blob encodeDataForOlderPeers(Name interestName, long session, ByteBuffer payload) {
+        if (olderPeersEncoder == null) return null;
+        byte[] content = new byte[payload.remaining()];
+        payload.duplicate().get(content);
+        byte[] message = olderPeersEncoder.encode(session, content);
+        if (message == null || message.length > PayloadSegments.SEGMENT_SIZE) return null;
+        Data response = new Data(interestName);
+        response.setContent(new Blob(message, false));
+        return response.wireEncode();
+    }
+}
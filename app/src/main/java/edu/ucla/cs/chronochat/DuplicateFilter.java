@@ -0,0 +1,95 @@
+package edu.ucla.cs.chronochat;
+
+
+/* Remembers the most recent (producer session, seqnum) pairs received, up to capacity of them, to
+ *   drop data that arrives again. ProducerTable already drops duplicates while the network thread
+ *   runs, but it starts over whenever the service is reinitialized, and lets through seqnums that
+ *   haven't been announced yet; this catches those, and outlives the network thread.
+ *
+ *   Pairs are stored as 64-bit fingerprints in an open-addressing table, with a ring of them in
+ *   arrival order to evict the oldest, so checking one doesn't allocate. Two pairs sharing a
+ *   fingerprint is possible but, with at most a few thousand remembered, vanishingly unlikely.
+ *
+ *   Not thread-safe; the network thread owns it.
+ */
+class DuplicateFilter {
+
+    private static final long EMPTY = 0;
+
+    private final long[] table; // fingerprints, at most half full
+    private final long[] arrivals; // ring of the fingerprints in table, oldest at next once full
+    private final int tableMask;
+    private int next = 0, size = 0;
+
+
+    /* capacity must be a power of two. */
+    DuplicateFilter(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        table = new long[2 * capacity];
+        arrivals = new long[capacity];
+        tableMask = table.length - 1;
+    }
+
+    /* A hash of a producer session's name, to pass to add(). */
+    static long hashProducer(String name) {
+        long hash = 0xcbf29ce484222325L; // 64-bit FNV-1a
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /* Records the pair. Returns false if it was already recorded, i.e. the data is a duplicate. */
+    boolean add(long producerHash, long seqNum) {
+        long fingerprint = fingerprint(producerHash, seqNum);
+        if (table[find(fingerprint)] == fingerprint) return false;
+        if (size == arrivals.length) {
+            remove(arrivals[next]);
+        } else {
+            size++;
+        }
+        table[find(fingerprint)] = fingerprint; // removing may have opened up an earlier slot
+        arrivals[next] = fingerprint;
+        next = (next + 1) % arrivals.length;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return size + "/" + arrivals.length + " pairs";
+    }
+
+    /* The slot holding the fingerprint, or else the empty slot where it would go. */
+    private int find(long fingerprint) {
+        int slot = (int) fingerprint & tableMask;
+        while (table[slot] != EMPTY && table[slot] != fingerprint) slot = (slot + 1) & tableMask;
+        return slot;
+    }
+
+    private void remove(long fingerprint) {
+        int slot = find(fingerprint);
+        // shift back later entries of the probe run that could have used this slot
+        int hole = slot;
+        while (true) {
+            slot = (slot + 1) & tableMask;
+            long entry = table[slot];
+            if (entry == EMPTY) break;
+            int home = (int) entry & tableMask;
+            if (((slot - home) & tableMask) >= ((slot - hole) & tableMask)) {
+                table[hole] = entry;
+                hole = slot;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    private static long fingerprint(long producerHash, long seqNum) {
+        long h = producerHash + seqNum * 0x9e3779b97f4a7c15L; // then MurmurHash3's finalizer
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == EMPTY) ? 1 : h;
+    }
+}
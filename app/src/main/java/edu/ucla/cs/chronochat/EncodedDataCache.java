@@ -0,0 +1,95 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.util.Blob;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/* LRU cache of wire-encoded Data packets we have served, keyed by (prefix, session, seqnum,
+ *   segment), so that repeated interests for the same data (e.g. several peers catching up on our
+ *   history) are answered by writing the cached encoding instead of rebuilding and re-encoding the
+ *   packet. The prefix is a hash of the name the packet was served under, before the session, which
+ *   tells apart the rooms sharing the cache and the two names of each seqnum (see DataNames). The
+ *   segment is PayloadSegments.NO_SEGMENT for interests that don't name one. Bounded by the total
+ *   size of the cached encodings. Not thread-safe; the network thread owns it.
+ */
+class EncodedDataCache {
+
+    private static final class Key {
+        long prefixHash, session, seqNum, segment;
+
+        Key(long prefixHash, long session, long seqNum, long segment) {
+            this.prefixHash = prefixHash;
+            this.session = session;
+            this.seqNum = seqNum;
+            this.segment = segment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return prefixHash == other.prefixHash && session == other.session &&
+                    seqNum == other.seqNum && segment == other.segment;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = ((prefixHash * 31 + session) * 31 + seqNum) * 31 + segment;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private final LinkedHashMap<Key, Blob> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Key lookupKey = new Key(0, 0, 0, 0); // reused so lookups don't allocate
+    private final long maxBytes;
+    private long bytes = 0, hits = 0, misses = 0;
+
+
+    EncodedDataCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /* Returns the cached encoding, or null (counted as a miss) if there isn't one. */
+    Blob get(long prefixHash, long session, long seqNum, long segment) {
+        lookupKey.prefixHash = prefixHash;
+        lookupKey.session = session;
+        lookupKey.seqNum = seqNum;
+        lookupKey.segment = segment;
+        Blob encoding = entries.get(lookupKey);
+        if (encoding == null) misses++;
+        else hits++;
+        return encoding;
+    }
+
+    void put(long prefixHash, long session, long seqNum, long segment, Blob encoding) {
+        if (encoding.size() > maxBytes) return;
+        Blob previous = entries.put(new Key(prefixHash, session, seqNum, segment), encoding);
+        if (previous != null) bytes -= previous.size();
+        bytes += encoding.size();
+
+        Iterator<Map.Entry<Key, Blob>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().size();
+            it.remove();
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    long getHitCount() { return hits; }
+    long getMissCount() { return misses; }
+
+    @Override
+    public String toString() {
+        long lookups = hits + misses;
+        return String.format(Locale.US, "%d hits, %d misses (%.1f%% hit rate), %d entries, %d bytes",
+                hits, misses, (lookups == 0) ? 0.0 : 100.0 * hits / lookups, entries.size(), bytes);
+    }
+}
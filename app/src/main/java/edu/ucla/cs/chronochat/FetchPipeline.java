@@ -0,0 +1,338 @@
+package edu.ucla.cs.chronochat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+
+/* Paces the data interests we express for missing seqnums. Each producer has its own congestion
+ *   window and there is a global window across all producers; both grow additively as data comes
+ *   back and are halved (at most once per RTT) on a timeout or Nack. Seqnums that don't fit in the
+ *   windows wait in per-producer pending ranges and are served round-robin, so a large catch-up
+ *   from one producer doesn't starve the others or flood the forwarder.
+ *
+ *   Interest lifetimes follow the producer's RTO, doubled for each retransmission. A timed-out
+ *   seqnum is retried right away (it has already waited a full RTO); a Nacked one is retried after
+ *   an exponential backoff with jitter. After MAX_RETRIES failed retries the producer is assumed to
+ *   be gone, and the seqnum is abandoned together with everything still pending for that producer.
+ *
+ *   Not thread-safe; the network thread owns it. Times are in milliseconds from any monotonic clock.
+ */
+class FetchPipeline {
+
+    /* Called from within fill(), onTimeout() and onNack(). onFetchAbandoned() may call back into
+     *   the pipeline, e.g. to cancel() the producer; expressInterest() must not.
+     */
+    interface Listener {
+        void expressInterest(int producerId, long seqNum, long lifetimeMillis) throws IOException;
+        void onFetchAbandoned(int producerId, long seqNum);
+    }
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final double INITIAL_PRODUCER_WINDOW = 4.0,
+                                MAX_PRODUCER_WINDOW = 64.0,
+                                INITIAL_GLOBAL_WINDOW = 16.0,
+                                MAX_GLOBAL_WINDOW = 256.0,
+                                MIN_WINDOW = 1.0;
+    private static final int MAX_RETRIES = 5;
+    private static final long BASE_BACKOFF_MILLIS = 250,
+                              MAX_BACKOFF_MILLIS = 8000;
+
+    private static class Window {
+        double size, slowStartThreshold;
+        final double max;
+        long lastDecreaseMillis = Long.MIN_VALUE / 2;
+
+        Window(double initialSize, double max) {
+            this.size = initialSize;
+            this.slowStartThreshold = max;
+            this.max = max;
+        }
+
+        void increase() {
+            if (size < slowStartThreshold) size += 1.0;    // slow start
+            else size += 1.0 / size;                       // congestion avoidance
+            if (size > max) size = max;
+        }
+
+        void decrease(long now, long rttMillis) {
+            if (now - lastDecreaseMillis < rttMillis) return; // one decrease per loss event
+            slowStartThreshold = Math.max(size / 2.0, MIN_WINDOW);
+            size = slowStartThreshold;
+            lastDecreaseMillis = now;
+        }
+    }
+
+    private static class Fetch {
+        final long sentAt;
+        final int attempt;
+
+        Fetch(long sentAt, int attempt) {
+            this.sentAt = sentAt;
+            this.attempt = attempt;
+        }
+    }
+
+    private static class Retry implements Comparable<Retry> {
+        final Producer producer;
+        final long seqNum, due;
+        final int attempt;
+
+        Retry(Producer producer, long seqNum, int attempt, long due) {
+            this.producer = producer;
+            this.seqNum = seqNum;
+            this.attempt = attempt;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(Retry other) {
+            return (due < other.due) ? -1 : ((due == other.due) ? 0 : 1);
+        }
+    }
+
+    private static class Producer {
+        final int id;
+        final Window window = new Window(INITIAL_PRODUCER_WINDOW, MAX_PRODUCER_WINDOW);
+        final RttEstimator rtt = new RttEstimator();
+        final HashMap<Long, Fetch> outstanding = new HashMap<>();
+        final ArrayDeque<Retry> retries = new ArrayDeque<>(); // due now, ahead of the range
+        long nextPending = 0, lastPending = -1;               // seqnums not requested yet
+        int delayedRetries = 0;
+        boolean scheduled = false;
+
+        Producer(int id) { this.id = id; }
+
+        boolean hasPending() { return !retries.isEmpty() || nextPending <= lastPending; }
+        boolean windowIsOpen() { return outstanding.size() < (int) window.size; }
+    }
+
+    private final Listener listener;
+    private Producer[] producers = new Producer[16]; // indexed by producer ID
+    private final ArrayDeque<Producer> schedule = new ArrayDeque<>();
+    private final PriorityQueue<Retry> delayedRetries = new PriorityQueue<>();
+    private final PriorityQueue<Long> expiries = new PriorityQueue<>(); // may hold stale entries
+    private final Window globalWindow = new Window(INITIAL_GLOBAL_WINDOW, MAX_GLOBAL_WINDOW);
+    private final RttEstimator globalRtt = new RttEstimator();
+    private final Random random = new Random();
+    private int inFlight = 0;
+    private long retransmissions = 0, abandoned = 0;
+
+
+    FetchPipeline(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* Queues seqnums fromSeqNum..toSeqNum (inclusive) of the producer for fetching. Producer IDs
+     *   are small non-negative integers (see ProducerTable).
+     */
+    void request(int producerId, long fromSeqNum, long toSeqNum) {
+        if (toSeqNum < fromSeqNum) return;
+        Producer producer = getOrCreateProducer(producerId);
+        if (producer.nextPending > producer.lastPending) {
+            producer.nextPending = fromSeqNum;
+            producer.lastPending = toSeqNum;
+        } else {
+            // ranges for a producer always arrive in increasing order, so just extend
+            producer.lastPending = Math.max(producer.lastPending, toSeqNum);
+        }
+        scheduleIfNeeded(producer);
+    }
+
+    /* Expresses as many pending interests as the windows allow, including any backed-off retries
+     *   that have come due. Returns how many were expressed.
+     */
+    int fill(long now) throws IOException {
+        releaseDueRetries(now);
+        int expressed = 0;
+        while (inFlight < (int) globalWindow.size && !schedule.isEmpty()) {
+            Producer producer = schedule.poll();
+            producer.scheduled = false;
+            if (!producer.windowIsOpen() || !producer.hasPending()) continue;
+
+            long seqNum;
+            int attempt;
+            Retry retry = producer.retries.poll();
+            if (retry != null) {
+                seqNum = retry.seqNum;
+                attempt = retry.attempt;
+                retransmissions++;
+            } else {
+                seqNum = producer.nextPending++;
+                attempt = 0;
+            }
+            long lifetime = producer.rtt.getBackedOffRto(attempt);
+            producer.outstanding.put(seqNum, new Fetch(now, attempt));
+            expiries.add(now + lifetime);
+            inFlight++;
+            expressed++;
+            listener.expressInterest(producer.id, seqNum, lifetime);
+            scheduleIfNeeded(producer); // back of the line, for round-robin between producers
+        }
+        return expressed;
+    }
+
+    /* Earliest time at which fill() or a pending interest timeout needs attention, or NO_DEADLINE.
+     *   Can be early, never late.
+     */
+    long getNextDeadline(long now) {
+        while (!expiries.isEmpty() && (expiries.peek() <= now || inFlight == 0)) expiries.poll();
+        long deadline = expiries.isEmpty() ? NO_DEADLINE : expiries.peek();
+        if (!delayedRetries.isEmpty()) deadline = Math.min(deadline, delayedRetries.peek().due);
+        return deadline;
+    }
+
+    void onData(int producerId, long seqNum, long now) {
+        Producer producer = getProducer(producerId);
+        Fetch fetch = (producer == null) ? null : producer.outstanding.remove(seqNum);
+        if (fetch == null) return;
+        inFlight--;
+
+        if (fetch.attempt == 0) {
+            // Karn's algorithm: a reply to a retransmission can't be matched to one send time
+            long rttSample = now - fetch.sentAt;
+            producer.rtt.addSample(rttSample);
+            globalRtt.addSample(rttSample);
+        }
+        producer.window.increase();
+        globalWindow.increase();
+        scheduleIfNeeded(producer);
+    }
+
+    void onTimeout(int producerId, long seqNum, long now) {
+        onLoss(producerId, seqNum, now, false);
+    }
+
+    void onNack(int producerId, long seqNum, long now) {
+        onLoss(producerId, seqNum, now, true);
+    }
+
+    /* Forgets the producer and everything pending or in flight for it. Replies to its interests
+     *   that are still in flight are then ignored.
+     */
+    void cancel(int producerId) {
+        Producer producer = getProducer(producerId);
+        if (producer == null) return;
+        inFlight -= producer.outstanding.size();
+        schedule.remove(producer);
+        Iterator<Retry> it = delayedRetries.iterator();
+        while (it.hasNext()) {
+            if (it.next().producer == producer) it.remove();
+        }
+        producers[producerId] = null;
+    }
+
+    void clear() {
+        Arrays.fill(producers, null);
+        schedule.clear();
+        delayedRetries.clear();
+        expiries.clear();
+        inFlight = 0;
+    }
+
+    int getInFlight() { return inFlight; }
+    long getRetransmissionCount() { return retransmissions; }
+    long getAbandonedCount() { return abandoned; }
+
+    long getPendingCount() {
+        long count = 0;
+        for (Producer producer : producers) {
+            if (producer == null) continue;
+            count += producer.retries.size() + producer.delayedRetries +
+                    Math.max(0, producer.lastPending - producer.nextPending + 1);
+        }
+        return count;
+    }
+
+    private void onLoss(int producerId, long seqNum, long now, boolean nacked) {
+        Producer producer = getProducer(producerId);
+        Fetch fetch = (producer == null) ? null : producer.outstanding.remove(seqNum);
+        if (fetch == null) return;
+        inFlight--;
+        producer.window.decrease(now, producer.rtt.getSmoothedRtt());
+        globalWindow.decrease(now, globalRtt.getSmoothedRtt());
+
+        int attempt = fetch.attempt + 1;
+        if (attempt > MAX_RETRIES) {
+            abandon(producer, seqNum);
+        } else if (nacked) {
+            producer.delayedRetries++;
+            delayedRetries.add(new Retry(producer, seqNum, attempt, now + getBackoff(attempt)));
+        } else {
+            producer.retries.add(new Retry(producer, seqNum, attempt, now));
+            scheduleIfNeeded(producer);
+        }
+    }
+
+    /* Exponential backoff with "equal jitter": half fixed, half random. */
+    private long getBackoff(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    private void releaseDueRetries(long now) {
+        while (!delayedRetries.isEmpty() && delayedRetries.peek().due <= now) {
+            Retry retry = delayedRetries.poll();
+            Producer producer = retry.producer;
+            producer.delayedRetries--;
+            producer.retries.add(retry);
+            scheduleIfNeeded(producer);
+        }
+    }
+
+    /* Gives up on the seqnum and on everything else not yet in flight for the producer, which
+     *   has stopped answering. Anything already in flight gets its own chance to fail. The
+     *   listener is only told once the pipeline is done with them all, since it may call back
+     *   in, e.g. to cancel() the producer.
+     */
+    private void abandon(Producer producer, long seqNum) {
+        long pendingCount = Math.max(0, producer.lastPending - producer.nextPending + 1);
+        long[] seqNums = new long[1 + producer.retries.size() + producer.delayedRetries];
+        int count = 0;
+        seqNums[count++] = seqNum;
+        Retry retry;
+        while ((retry = producer.retries.poll()) != null) seqNums[count++] = retry.seqNum;
+        Iterator<Retry> it = delayedRetries.iterator();
+        while (it.hasNext()) {
+            Retry delayed = it.next();
+            if (delayed.producer != producer) continue;
+            seqNums[count++] = delayed.seqNum;
+            it.remove();
+        }
+        producer.delayedRetries = 0;
+        long firstPending = producer.nextPending;
+        producer.nextPending = producer.lastPending + 1;
+        if (producer.outstanding.isEmpty()) producers[producer.id] = null;
+
+        abandoned += count + pendingCount;
+        for (int i = 0; i < count; i++) listener.onFetchAbandoned(producer.id, seqNums[i]);
+        for (long pending = firstPending; pending < firstPending + pendingCount; pending++)
+            listener.onFetchAbandoned(producer.id, pending);
+    }
+
+    private Producer getProducer(int producerId) {
+        return (producerId >= 0 && producerId < producers.length) ? producers[producerId] : null;
+    }
+
+    private Producer getOrCreateProducer(int producerId) {
+        if (producerId >= producers.length)
+            producers = Arrays.copyOf(producers, Math.max(producerId + 1, producers.length * 2));
+        Producer producer = producers[producerId];
+        if (producer == null) {
+            producer = new Producer(producerId);
+            producers[producerId] = producer;
+        }
+        return producer;
+    }
+
+    private void scheduleIfNeeded(Producer producer) {
+        if (producer.scheduled || !producer.hasPending() || !producer.windowIsOpen()) return;
+        producer.scheduled = true;
+        schedule.add(producer);
+    }
+}
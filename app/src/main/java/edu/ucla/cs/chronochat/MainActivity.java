@@ -1,35 +1,38 @@
 package edu.ucla.cs.chronochat;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.support.v4.content.ContextCompat;
+import android.content.ServiceConnection;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.support.v7.app.NotificationCompat;
+import android.os.IBinder;
 import android.text.Editable;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import edu.ucla.cs.chronochat.ChronoSyncService.ErrorCode;
 import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
 
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity
+        implements MessagesAdapter.ChangeListener, ReceivedMessageQueue.Listener,
+                   RosterSnapshot.Listener {
 
     private class LocalBroadcastReceiver extends BroadcastReceiver {
 
@@ -37,15 +40,14 @@ public class MainActivity extends AppCompatActivity {
         public void onReceive(Context context, Intent intent) {
             Log.d(TAG, "broadcast received");
             switch (intent.getAction()) {
-                case ChronoChatService.BCAST_RECEIVED_MSG:
-                    handleReceivedMessage(intent);
-                    break;
                 case ChronoSyncService.BCAST_ERROR:
                     handleError(intent);
                     break;
                 case ChronoChatService.BCAST_ROSTER:
                     String[] roster = intent.getStringArrayExtra(ChronoChatService.EXTRA_ROSTER);
-                    showRoster(roster);
+                    long version = intent.getLongExtra(ChronoChatService.EXTRA_ROSTER_VERSION, 0);
+                    showRoster((roster != null) ? RosterSnapshot.of(version, roster) :
+                            RosterSnapshot.EMPTY);
                     break;
             }
         }
@@ -55,17 +57,52 @@ public class MainActivity extends AppCompatActivity {
                                 SAVED_USERNAME = TAG + ".username",
                                 SAVED_CHATROOM = TAG + ".chatroom",
                                 SAVED_PREFIX = TAG + ".prefix",
-                                SAVED_MESSAGES = TAG + ".messages";
+                                ROSTER_DIALOG_TAG = "RosterDialogFragment";
 
-    private static final int NOTIFICATION_ID = 0;
-    public static final int SERVICE_NOTIFICATION_ID = 1;
+    public static final int NOTIFICATION_ID = 0,
+                            SERVICE_NOTIFICATION_ID = 1;
+    private static final int PREFETCH_DISTANCE = 20; // messages from the edge of the window
 
     private EditText editMessage;
+    private ListView messageView;
     private ArrayList<ChronoChatMessage> messageList = new ArrayList<>();
     private MessagesAdapter messageListAdapter;
+    private MessageStore messageStore;
     private String username, chatroom, prefix;
     private boolean activityVisible = false;
     private LocalBroadcastReceiver broadcastReceiver;
+    private ChronoChatService chatService;
+    private boolean chatServiceBound = false;
+    private boolean switchingChatroom = false; // the service stays in the room we're leaving
+
+    private final ServiceConnection chatServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            chatService = ((ChronoChatService.LocalBinder) binder).getService();
+            chatService.setMessageListener(MainActivity.this);
+            chatService.setRosterListener(MainActivity.this);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            chatService = null;
+        }
+    };
+    private boolean destroyed = false;
+
+    // Pages of the chat log are loaded from the MessageStore one at a time. windowGeneration
+    // changes whenever the log starts over, so pages meant for the old log are ignored.
+    private boolean loadingOlder = false, loadingNewer = false, showingNewest = true;
+    // where the first visible message has been moved to since the ListView's last layout
+    private int scrollAnchorPosition = -1, scrollAnchorTop;
+    private int windowGeneration = 0;
+    // Every message up to this store sequence number was in the store when the newest messages
+    // were last loaded, so a new message at or below it is already in the log.
+    private long loadedThroughSequence = 0;
+    // While the newest messages are loading, new messages wait here with their store sequence
+    // numbers, to be added after the ones loaded if they aren't among them.
+    private ArrayList<ChronoChatMessage> messagesReceivedDuringLoad = new ArrayList<>();
+    private ArrayList<Long> sequencesReceivedDuringLoad = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -74,22 +111,33 @@ public class MainActivity extends AppCompatActivity {
         Log.d(TAG, "onCreate");
 
         editMessage = (EditText) findViewById(R.id.edit_message);
-        ListView messageView = (ListView) findViewById(R.id.message_view);
+        messageView = (ListView) findViewById(R.id.message_view);
+        messageStore = MessageStore.getInstance(this);
 
         registerBroadcastReceiver();
 
         messageListAdapter = new MessagesAdapter(this, messageList);
+        messageListAdapter.setChangeListener(this);
         messageView.setAdapter(messageListAdapter);
+        messageView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) { }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                showingNewest = firstVisibleItem + visibleItemCount >= totalItemCount;
+                scrollAnchorPosition = -1; // the list has been laid out again
+                prefetchMessages(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+        });
 
         if (savedInstanceState != null) {
             Log.d(TAG, "restoring saved instance state");
             setLoginInfo(savedInstanceState.getString(SAVED_USERNAME),
                     savedInstanceState.getString(SAVED_CHATROOM),
                     savedInstanceState.getString(SAVED_PREFIX));
-            ArrayList<ChronoChatMessage> savedMessages =
-                    savedInstanceState.getParcelableArrayList(SAVED_MESSAGES);
-            if (savedMessages != null)
-                messageListAdapter.addAll(savedMessages);
+            if (chatroom != null) showLatestMessages();
         }
 
         ActionBar actionBar = getSupportActionBar();
@@ -99,11 +147,148 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /* Empties the chat log; pages from the store that are still loading will be ignored. */
+    private void resetMessageLog(boolean showOlderMessages) {
+        windowGeneration++;
+        loadingOlder = loadingNewer = false;
+        loadedThroughSequence = 0;
+        messagesReceivedDuringLoad.clear();
+        sequencesReceivedDuringLoad.clear();
+        messageListAdapter.reset(showOlderMessages);
+    }
+
+    /* Replaces the chat log with the room's newest messages from the store. */
+    private void showLatestMessages() {
+        resetMessageLog(false);
+        loadingNewer = true;
+        final int generation = windowGeneration;
+        messageStore.loadLatest(chatroom, MessagesAdapter.PAGE_SIZE,
+                new MessageStore.LoadCallback() {
+                    @Override
+                    public void onMessagesLoaded(List<ChronoChatMessage> messages,
+                                                 long throughSequence) {
+                        if (destroyed || generation != windowGeneration) return;
+                        Log.d(TAG, "loaded " + messages.size() + " latest messages");
+                        messageListAdapter.prependPage(messages, isFullPage(messages));
+                        finishLoadingNewer(throughSequence);
+                    }
+                });
+    }
+
+    /* Loads the next page at whichever end of the chat log the user is scrolling towards. */
+    private void prefetchMessages(int firstVisible, int visibleCount, int totalCount) {
+        if (loadingOlder || loadingNewer || totalCount == 0) return;
+        if (firstVisible < PREFETCH_DISTANCE && messageListAdapter.hasOlder()) {
+            loadOlderMessages();
+        } else if (firstVisible + visibleCount > totalCount - PREFETCH_DISTANCE &&
+                messageListAdapter.hasNewer()) {
+            loadNewerMessages();
+        }
+    }
+
+    private void loadOlderMessages() {
+        loadingOlder = true;
+        final int generation = windowGeneration;
+        messageStore.loadOlder(chatroom, messageListAdapter.getOldestTimestamp(),
+                messageListAdapter.countAtOldestTimestamp(), MessagesAdapter.PAGE_SIZE,
+                new MessageStore.LoadCallback() {
+                    @Override
+                    public void onMessagesLoaded(List<ChronoChatMessage> messages,
+                                                 long throughSequence) {
+                        if (destroyed || generation != windowGeneration) return;
+                        loadingOlder = false;
+                        messageListAdapter.prependPage(messages, isFullPage(messages));
+                    }
+                });
+    }
+
+    private void loadNewerMessages() {
+        loadingNewer = true;
+        final int generation = windowGeneration;
+        messageStore.loadNewer(chatroom, messageListAdapter.getNewestTimestamp(),
+                messageListAdapter.countAtNewestTimestamp(), MessagesAdapter.PAGE_SIZE,
+                new MessageStore.LoadCallback() {
+                    @Override
+                    public void onMessagesLoaded(List<ChronoChatMessage> messages,
+                                                 long throughSequence) {
+                        if (destroyed || generation != windowGeneration) return;
+                        messageListAdapter.appendPage(messages, isFullPage(messages));
+                        finishLoadingNewer(throughSequence);
+                    }
+                });
+    }
+
+    private void finishLoadingNewer(long throughSequence) {
+        loadingNewer = false;
+        loadedThroughSequence = throughSequence;
+        ArrayList<ChronoChatMessage> messages = new ArrayList<>(messagesReceivedDuringLoad);
+        long[] storeSequences = new long[messages.size()];
+        for (int i = 0; i < storeSequences.length; i++)
+            storeSequences[i] = sequencesReceivedDuringLoad.get(i);
+        messagesReceivedDuringLoad.clear();
+        sequencesReceivedDuringLoad.clear();
+        showMessages(messages, storeSequences);
+    }
+
+    private static boolean isFullPage(List<ChronoChatMessage> messages) {
+        return messages.size() == MessagesAdapter.PAGE_SIZE;
+    }
+
+    @Override
+    public void onMessagesInserted(int position, int count) {
+        if (position <= getFirstVisiblePosition()) shiftScrollPosition(count);
+    }
+
+    @Override
+    public void onMessagesRemoved(int position, int count) {
+        int firstVisible = getFirstVisiblePosition();
+        if (position < firstVisible) shiftScrollPosition(-Math.min(count, firstVisible - position));
+    }
+
+    /* Keeps the messages on screen where they are when messages are added or dropped above them.
+     *   While the newest message is on screen, the ListView keeps it there instead.
+     */
+    private void shiftScrollPosition(int shift) {
+        if (showingNewest) return;
+        if (scrollAnchorPosition < 0) {
+            View top = messageView.getChildAt(0);
+            scrollAnchorPosition = messageView.getFirstVisiblePosition();
+            scrollAnchorTop = (top == null) ? 0 : top.getTop();
+        }
+        scrollAnchorPosition = Math.max(0, scrollAnchorPosition + shift);
+        messageView.setSelectionFromTop(scrollAnchorPosition, scrollAnchorTop);
+    }
+
+    /* The ListView's own idea of this is only updated by its next layout. */
+    private int getFirstVisiblePosition() {
+        return (scrollAnchorPosition >= 0) ?
+                scrollAnchorPosition : messageView.getFirstVisiblePosition();
+    }
+
+    /* Adds new messages to the chat log in one update, except for any that are already there;
+     *   if the log doesn't reach the newest messages, they're left in the store for now. A store
+     *   sequence number of 0 means the message wasn't stored, so it's always added.
+     */
+    private void showMessages(List<ChronoChatMessage> messages, long[] storeSequences) {
+        if (loadingNewer) {
+            messagesReceivedDuringLoad.addAll(messages);
+            for (long storeSequence : storeSequences) sequencesReceivedDuringLoad.add(storeSequence);
+            return;
+        }
+        if (messageListAdapter.hasNewer()) return;
+        ArrayList<ChronoChatMessage> newMessages = new ArrayList<>(messages.size());
+        for (int i = 0; i < storeSequences.length; i++) {
+            long storeSequence = storeSequences[i];
+            if (storeSequence == 0 || storeSequence > loadedThroughSequence)
+                newMessages.add(messages.get(i));
+        }
+        messageListAdapter.addAll(newMessages);
+    }
+
     private void registerBroadcastReceiver() {
         broadcastReceiver = new LocalBroadcastReceiver();
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(ChronoSyncService.BCAST_ERROR);
-        intentFilter.addAction(ChronoChatService.BCAST_RECEIVED_MSG);
         intentFilter.addAction(ChronoChatService.BCAST_ROSTER);
         LocalBroadcastManager.getInstance(this).registerReceiver(
                 broadcastReceiver,
@@ -114,9 +299,11 @@ public class MainActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
         activityVisible = true;
-        hideNotification();
-        if (!loginInfoIsSet())
+        if (loginInfoIsSet()) {
+            bindChatService();
+        } else {
             launchLoginActivity();
+        }
     }
 
     private void launchLoginActivity() {
@@ -133,12 +320,15 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        messageListAdapter.clear();
+        if (!switchingChatroom) resetMessageLog(false);
 
         setLoginInfo(data.getStringExtra(ChronoChatService.EXTRA_USERNAME),
                 data.getStringExtra(ChronoChatService.EXTRA_CHATROOM),
                 data.getStringExtra(ChronoChatService.EXTRA_PREFIX));
 
+        // a room we've been in keeps receiving in the background, so its log may have grown
+        if (switchingChatroom) showLatestMessages();
+        switchingChatroom = false;
         joinChatroom();
     }
 
@@ -160,11 +350,42 @@ public class MainActivity extends AppCompatActivity {
     public void onStop() {
         super.onStop();
         activityVisible = false;
+        unbindChatService();
+    }
+
+    /* The service is bound while the activity is visible, so it can hand over received messages
+     *   directly; while it's hidden, the service holds on to them and shows notifications instead.
+     */
+    private void bindChatService() {
+        if (chatServiceBound) return;
+        chatServiceBound = bindService(new Intent(this, ChronoChatService.class),
+                chatServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    private void unbindChatService() {
+        if (!chatServiceBound) return;
+        if (chatService != null) {
+            chatService.setMessageListener(null);
+            chatService.setRosterListener(null);
+        }
+        unbindService(chatServiceConnection);
+        chatServiceBound = false;
+        chatService = null;
+    }
+
+    @Override
+    public void onMessagesReceived(List<ChronoChatMessage> messages, long[] storeSequences,
+                                   boolean messagesDropped) {
+        Log.d(TAG, "received " + messages.size() + " messages");
+        if (messagesDropped)
+            showLatestMessages(); // the ones we missed are in the store
+        showMessages(messages, storeSequences);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        destroyed = true;
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
     }
 
@@ -179,7 +400,6 @@ public class MainActivity extends AppCompatActivity {
         savedState.putString(SAVED_USERNAME, username);
         savedState.putString(SAVED_CHATROOM, chatroom);
         savedState.putString(SAVED_PREFIX, prefix);
-        savedState.putParcelableArrayList(SAVED_MESSAGES, messageList);
         super.onSaveInstanceState(savedState);
     }
 
@@ -199,6 +419,9 @@ public class MainActivity extends AppCompatActivity {
             case R.id.action_show_roster:
                 requestRoster();
                 return true;
+            case R.id.action_switch_room:
+                switchChatroom();
+                return true;
             case R.id.action_quit:
                 quitApplication();
                 return true;
@@ -214,7 +437,9 @@ public class MainActivity extends AppCompatActivity {
         }
         Log.d(TAG, "joinChatroom(): sending JOIN");
         ChronoChatMessage join = new ChronoChatMessage(username, chatroom, ChatMessageType.JOIN);
-        sendMessage(join);
+        // the service logs it, if it isn't in the room yet; it reaches the chat log from there
+        passToService(join);
+        if (activityVisible) bindChatService();
     }
 
     private void leaveChatroom() {
@@ -226,7 +451,19 @@ public class MainActivity extends AppCompatActivity {
         launchLoginActivity();
     }
 
+    /* Shows another room without leaving this one, which the service keeps following. Switching
+     *   back to a room we're still in only makes it the one shown again.
+     */
+    private void switchChatroom() {
+        switchingChatroom = true;
+        launchLoginActivity();
+    }
+
     private void requestRoster() {
+        if (chatService != null) {
+            showRoster(chatService.getRosterSnapshot());
+            return;
+        }
         Intent request = new Intent(this, ChronoChatService.class);
         request.setAction(ChronoChatService.ACTION_GET_ROSTER);
         startService(request);
@@ -251,7 +488,22 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void sendMessage(ChronoChatMessage message) {
-        messageListAdapter.add(message);
+        long storeSequence = messageStore.addLocal(chatroom, message);
+        if (messageListAdapter.hasNewer()) {
+            showLatestMessages(); // jump to the message just sent
+        } else {
+            showMessages(Collections.singletonList(message), new long[] { storeSequence });
+        }
+        passToService(message);
+    }
+
+    private void passToService(ChronoChatMessage message) {
+        if (chatService != null) {
+            chatService.sendMessage(message, prefix);
+            return;
+        }
+        // not bound yet, e.g. the JOIN right after logging in; this also starts the service, which
+        // keeps it running while unbound
         Intent intent = new Intent(this, ChronoChatService.class);
         intent.setAction(ChronoChatService.ACTION_SEND)
               .putExtra(ChronoChatService.EXTRA_MESSAGE, message.toByteArray())
@@ -259,56 +511,18 @@ public class MainActivity extends AppCompatActivity {
         startService(intent);
     }
 
-    private void handleReceivedMessage(Intent intent) {
-        byte[] encodedMessage = intent.getByteArrayExtra(ChronoChatService.EXTRA_MESSAGE);
-        ChronoChatMessage message = new ChronoChatMessage(encodedMessage);
-        Log.d(TAG, "received message from " + message.getFrom());
-        showNotification(message);
-        messageListAdapter.add(message);
-    }
-
-    private void showNotification(ChronoChatMessage message) {
-
-        if (activityVisible) return;
-
-        ChatMessageType type = message.getType();
-        if (type != ChatMessageType.CHAT) return;
-
-        String from = message.getFrom(), text = message.getData();
-
-        NotificationCompat.Builder builder =
-                (NotificationCompat.Builder) new NotificationCompat.Builder(this)
-                        .setSmallIcon(R.drawable.notification_icon)
-                        .setContentTitle(from)
-                        .setContentText(text)
-                        .setColor(ContextCompat.getColor(getApplicationContext(),
-                                R.color.colorPrimary))
-                        .setDefaults(Notification.DEFAULT_SOUND|Notification.DEFAULT_LIGHTS);
-
-        Intent intent = new Intent(this, MainActivity.class);
-        PendingIntent resultPendingIntent = PendingIntent.getActivity(getApplicationContext(),
-                (int)System.currentTimeMillis(), intent, 0);
-
-        builder.setContentIntent(resultPendingIntent);
-        builder.setAutoCancel(true);
-
-        NotificationManager notificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.notify(NOTIFICATION_ID, builder.build());
-    }
-
-    private void hideNotification() {
-        NotificationManager notificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.cancel(NOTIFICATION_ID);
+    private void showRoster(RosterSnapshot roster) {
+        RosterDialogFragment dialog = new RosterDialogFragment();
+        dialog.setArguments(RosterDialogFragment.newArguments(roster));
+        dialog.show(getFragmentManager(), ROSTER_DIALOG_TAG);
     }
 
-    private void showRoster(String[] roster) {
-        Bundle args = new Bundle();
-        args.putStringArray(ChronoChatService.EXTRA_ROSTER, roster);
-        RosterDialogFragment dialog = new RosterDialogFragment();
-        dialog.setArguments(args);
-        dialog.show(getFragmentManager(), "RosterDialogFragment");
+    /* Keeps an open roster dialog up to date while the service is bound. */
+    @Override
+    public void onRosterChanged(RosterSnapshot.Change change) {
+        RosterDialogFragment dialog =
+                (RosterDialogFragment) getFragmentManager().findFragmentByTag(ROSTER_DIALOG_TAG);
+        if (dialog != null) dialog.onRosterChanged(change);
     }
 
     private void handleError(Intent intent) {
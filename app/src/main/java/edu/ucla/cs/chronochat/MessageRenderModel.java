@@ -0,0 +1,60 @@
+package edu.ucla.cs.chronochat;
+
+import android.content.Context;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* What a chat log row shows for a message, worked out once so that binding a row only copies
+ *   fields. The text is built wherever the message is first handled (the network thread for
+ *   received messages, the MessageStore's thread for loaded ones), so mostly off the UI thread.
+ *   The sent and startsGroup flags depend on who's logged in and on the row above, so
+ *   MessagesAdapter keeps them up to date on the UI thread, for every row that an insertion or
+ *   removal puts next to another.
+ *
+ *   The text's layout isn't precomputed: TextView only takes a finished layout through
+ *   PrecomputedText (API 28, and a newer support library than this app's), and a StaticLayout
+ *   would need the row's width, which isn't known off the UI thread, and a custom view to draw it.
+ */
+class MessageRenderModel {
+
+    // DateFormat.getTimeInstance() makes a new formatter every time, and they aren't thread-safe
+    private static final ThreadLocal<DateFormat> timeFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() { return DateFormat.getTimeInstance(); }
+    };
+
+    final String from;
+    final CharSequence text;
+    boolean sent, startsGroup = true; // UI thread only
+
+
+    MessageRenderModel(Context context, ChronoChatMessage message) {
+        from = message.getFrom();
+        text = formatTime(message.getTimestamp()) + ": " + getBody(context, message);
+    }
+
+    static String formatTime(int timestamp) {
+        return timeFormat.get().format(new Date((long) timestamp * 1000));
+    }
+
+    private static String getBody(Context context, ChronoChatMessage message) {
+        switch (message.getType().getNumber()) {
+            case ChatMessageType.CHAT_VALUE:
+                return message.getData();
+            case ChatMessageType.JOIN_VALUE:
+                return context.getString(R.string.message_join);
+            case ChatMessageType.LEAVE_VALUE:
+                return context.getString(R.string.message_leave);
+            case ChatMessageType.OTHER_VALUE:
+                return context.getString(R.string.message_other);
+            case ChatMessageType.MISSING_VALUE:
+                return context.getString(R.string.message_missing, message.getData());
+            default:
+                return context.getString(R.string.message_unhandled);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package edu.ucla.cs.chronochat;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/* On-device history of the messages shown in the chat log, kept in SQLite. Received messages are
+ *   keyed by (room, producer, session, seqnum, index within the seqnum's batch), so a message that
+ *   is fetched twice is stored once; messages that originate locally (sent by us, or made up for
+ *   the log, like zombie LEAVEs) have no producer and are always stored.
+ *
+ *   Writes are queued and committed in batches, one transaction each, on the store's own thread.
+ *   Loads run on the same thread after any queued writes, and their results are delivered on the
+ *   main thread. Each queued message gets a store sequence number, and a load reports the last one
+ *   it covers, so a reader can tell which messages it has already seen.
+ *
+ *   One instance per process; safe to use from any thread.
+ */
+class MessageStore {
+
+    interface LoadCallback {
+        /* Called on the main thread with the loaded messages, oldest first. */
+        void onMessagesLoaded(List<ChronoChatMessage> messages, long throughSequence);
+    }
+
+    private static final String TAG = "MessageStore";
+    private static final String DATABASE_NAME = "messages.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final long BATCH_DELAY_MILLIS = 100;
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final long MAX_AGE_SECONDS = 30 * 24 * 60 * 60;
+
+    private static final String TABLE_MESSAGES = "messages",
+            COLUMN_ROOM = "room",
+            COLUMN_PRODUCER = "producer",
+            COLUMN_SESSION = "session",
+            COLUMN_SEQNUM = "seqnum",
+            COLUMN_INDEX = "batch_index",
+            COLUMN_TIMESTAMP = "timestamp",
+            COLUMN_MESSAGE = "message";
+
+    private static class Row {
+        final String room, producer;
+        final long session, seqNum;
+        final int index;
+        final ChronoChatMessage message;
+
+        Row(String room, String producer, long session, long seqNum, int index,
+            ChronoChatMessage message) {
+            this.room = room;
+            this.producer = producer;
+            this.session = session;
+            this.seqNum = seqNum;
+            this.index = index;
+            this.message = message;
+        }
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            // NULLs are distinct in a UNIQUE constraint, so local messages never collide
+            db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    COLUMN_ROOM + " TEXT NOT NULL, " +
+                    COLUMN_PRODUCER + " TEXT, " +
+                    COLUMN_SESSION + " INTEGER, " +
+                    COLUMN_SEQNUM + " INTEGER, " +
+                    COLUMN_INDEX + " INTEGER, " +
+                    COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
+                    COLUMN_MESSAGE + " BLOB NOT NULL, " +
+                    "UNIQUE (" + COLUMN_ROOM + ", " + COLUMN_PRODUCER + ", " + COLUMN_SESSION +
+                    ", " + COLUMN_SEQNUM + ", " + COLUMN_INDEX + "))");
+            db.execSQL("CREATE INDEX messages_by_time ON " + TABLE_MESSAGES + " (" +
+                    COLUMN_ROOM + ", " + COLUMN_TIMESTAMP + ", _id)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
+            onCreate(db);
+        }
+    }
+
+    private static MessageStore instance;
+
+    private final Context context;
+    private final Helper helper;
+    private final Handler handler, mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Row> pending = new ArrayList<>();  // guarded by this
+    private long nextSequence = 1;                            // guarded by this
+    private boolean flushScheduled = false;                   // guarded by this
+    private SQLiteStatement insertStatement;                  // store thread only
+
+    private final Runnable flushPending = new Runnable() {
+        @Override
+        public void run() { flush(); }
+    };
+
+
+    static synchronized MessageStore getInstance(Context context) {
+        if (instance == null) instance = new MessageStore(context.getApplicationContext());
+        return instance;
+    }
+
+    private MessageStore(Context context) {
+        this.context = context;
+        helper = new Helper(context);
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() { deleteOldMessages(); }
+        });
+    }
+
+    /* Queues a received message for storage and returns its store sequence number, or 0 if there
+     *   is no room to store it under (e.g. we've just logged out).
+     */
+    long add(String room, String producer, long session, long seqNum, int index,
+             ChronoChatMessage message) {
+        return enqueue(new Row(room, producer, session, seqNum, index, message));
+    }
+
+    /* Like add(), for a message that didn't come from the network. */
+    long addLocal(String room, ChronoChatMessage message) {
+        return enqueue(new Row(room, null, 0, 0, 0, message));
+    }
+
+    /* Loads the room's newest messages, up to limit. */
+    void loadLatest(String room, int limit, LoadCallback callback) {
+        loadOlder(room, Long.MAX_VALUE, 0, limit, callback);
+    }
+
+    /* Pages back through the room's history: loads up to limit messages from timestamp and
+     *   earlier, newest first, after skipping the newest skip of them. A reader holding the
+     *   messages from some timestamp onwards passes that timestamp and the number of messages it
+     *   has with exactly that timestamp, since timestamps are only to the second.
+     */
+    void loadOlder(String room, long timestamp, int skip, int limit, LoadCallback callback) {
+        load(room, timestamp, true, skip, limit, callback);
+    }
+
+    /* Like loadOlder(), paging forwards: messages from timestamp and later, oldest first. */
+    void loadNewer(String room, long timestamp, int skip, int limit, LoadCallback callback) {
+        load(room, timestamp, false, skip, limit, callback);
+    }
+
+    private void load(final String room, final long timestamp, final boolean older,
+                      final int skip, final int limit, final LoadCallback callback) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long throughSequence = flush();
+                final List<ChronoChatMessage> messages =
+                        query(room, timestamp, older, skip, limit);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() { callback.onMessagesLoaded(messages, throughSequence); }
+                });
+            }
+        });
+    }
+
+    private synchronized long enqueue(Row row) {
+        if (row.room == null) return 0;
+        pending.add(row);
+        if (pending.size() >= MAX_BATCH_SIZE) {
+            handler.removeCallbacks(flushPending);
+            handler.post(flushPending);
+            flushScheduled = true;
+        } else if (!flushScheduled) {
+            handler.postDelayed(flushPending, BATCH_DELAY_MILLIS);
+            flushScheduled = true;
+        }
+        return nextSequence++;
+    }
+
+    /* Writes the queued messages in one transaction. Returns the sequence number of the last
+     *   message written (or earlier). Store thread only.
+     */
+    private long flush() {
+        ArrayList<Row> batch;
+        long throughSequence;
+        synchronized (this) {
+            handler.removeCallbacks(flushPending);
+            flushScheduled = false;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            throughSequence = nextSequence - 1;
+        }
+        if (batch.isEmpty()) return throughSequence;
+
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            if (insertStatement == null) {
+                insertStatement = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_MESSAGES +
+                        " (" + COLUMN_ROOM + ", " + COLUMN_PRODUCER + ", " + COLUMN_SESSION + ", " +
+                        COLUMN_SEQNUM + ", " + COLUMN_INDEX + ", " + COLUMN_TIMESTAMP + ", " +
+                        COLUMN_MESSAGE + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            }
+            db.beginTransaction();
+            try {
+                for (Row row : batch) bindAndInsert(row);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.d(TAG, "stored " + batch.size() + " messages");
+        } catch (SQLiteException e) {
+            Log.e(TAG, "failed to store " + batch.size() + " messages", e);
+        }
+        return throughSequence;
+    }
+
+    private void bindAndInsert(Row row) {
+        SQLiteStatement insert = insertStatement;
+        insert.clearBindings();
+        insert.bindString(1, row.room);
+        if (row.producer == null) {
+            insert.bindNull(2);
+            insert.bindNull(3);
+            insert.bindNull(4);
+            insert.bindNull(5);
+        } else {
+            insert.bindString(2, row.producer);
+            insert.bindLong(3, row.session);
+            insert.bindLong(4, row.seqNum);
+            insert.bindLong(5, row.index);
+        }
+        insert.bindLong(6, row.message.getTimestamp());
+        insert.bindBlob(7, row.message.toByteArray());
+        insert.executeInsert();
+    }
+
+    /* Runs in time proportional to limit + skip whatever the room's size, thanks to the index on
+     *   (room, timestamp, _id).
+     */
+    private List<ChronoChatMessage> query(String room, long timestamp, boolean older, int skip,
+                                          int limit) {
+        ArrayList<ChronoChatMessage> messages = new ArrayList<>();
+        String order = older ? " DESC" : " ASC";
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(TABLE_MESSAGES,
+                    new String[] { COLUMN_MESSAGE },
+                    COLUMN_ROOM + " = ? AND " + COLUMN_TIMESTAMP + (older ? " <= ?" : " >= ?"),
+                    new String[] { room, String.valueOf(timestamp) },
+                    null, null, COLUMN_TIMESTAMP + order + ", _id" + order,
+                    skip + ", " + limit);
+            while (cursor.moveToNext()) {
+                ChronoChatMessage message = new ChronoChatMessage(cursor.getBlob(0));
+                if (message.getParseError()) continue;
+                message.prepareRenderModel(context); // here rather than on the UI thread
+                messages.add(message);
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "failed to load messages for " + room, e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        if (older) Collections.reverse(messages);
+        return messages;
+    }
+
+    private void deleteOldMessages() {
+        long cutoff = System.currentTimeMillis() / 1000 - MAX_AGE_SECONDS;
+        try {
+            int deleted = helper.getWritableDatabase().delete(TABLE_MESSAGES,
+                    COLUMN_TIMESTAMP + " < ?", new String[] { String.valueOf(cutoff) });
+            if (deleted > 0) Log.d(TAG, "deleted " + deleted + " old messages");
+        } catch (SQLiteException e) {
+            Log.e(TAG, "failed to delete old messages", e);
+        }
+    }
+}
@@ -10,14 +10,28 @@ import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
-
-import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+import java.util.Collections;
+import java.util.List;
 
 
+/* The chat log shows a window of at most MAX_WINDOW_SIZE messages out of the room's history in the
+ *   MessageStore. The window grows a page at a time at whichever end the user scrolls towards, and
+ *   loses messages at the other end once it's full, so the memory it takes doesn't depend on how
+ *   long the history is. New messages are added only while the window reaches the newest message;
+ *   otherwise the store has them and they're paged in later.
+ */
 class MessagesAdapter extends ArrayAdapter<ChronoChatMessage> {
 
+    /* ListView can only be told that everything changed, so this says what actually did, for
+     *   example to keep the visible messages in place. Called before the ListView is notified.
+     */
+    interface ChangeListener {
+        void onMessagesInserted(int position, int count);
+        void onMessagesRemoved(int position, int count);
+    }
+
     private static class ViewHolder {
         TextView usernameView, messageTextView;
     }
@@ -31,9 +45,17 @@ class MessagesAdapter extends ArrayAdapter<ChronoChatMessage> {
                              TYPE_RECEIVED_MESSAGE_ONLY = 3,
                              VIEW_TYPE_COUNT = 4;
 
+    static final int PAGE_SIZE = 100;
+    private static final int MAX_WINDOW_SIZE = 3 * PAGE_SIZE;
+
+    private final ArrayList<ChronoChatMessage> messages;
+    private boolean hasOlder = false, hasNewer = false;
+    private ChangeListener changeListener;
+
 
     MessagesAdapter(Context context, ArrayList<ChronoChatMessage> messages) {
         super(context, 0, messages);
+        this.messages = messages;
         // We want full control over notifyDataSetChanged() to prevent unnecessary calls when sorting
         setNotifyOnChange(false);
     }
@@ -45,20 +67,16 @@ class MessagesAdapter extends ArrayAdapter<ChronoChatMessage> {
 
     @Override
     public int getItemViewType(int position) {
-        ChronoChatMessage thisMessage = getItem(position);
-        boolean sent = thisMessage.getFrom().equals(loggedInUsername);
-        if (position > 0) {
-            ChronoChatMessage previousMessage = getItem(position - 1);
-            if (thisMessage.getFrom().equals(previousMessage.getFrom()))
-                return (sent ? TYPE_SENT_MESSAGE_ONLY : TYPE_RECEIVED_MESSAGE_ONLY);
-        }
-        return (sent ? TYPE_SENT_MESSAGE_WITH_USERNAME : TYPE_RECEIVED_MESSAGE_WITH_USERNAME);
+        MessageRenderModel row = getRenderModel(position);
+        if (row.sent)
+            return row.startsGroup ? TYPE_SENT_MESSAGE_WITH_USERNAME : TYPE_SENT_MESSAGE_ONLY;
+        return row.startsGroup ? TYPE_RECEIVED_MESSAGE_WITH_USERNAME : TYPE_RECEIVED_MESSAGE_ONLY;
     }
 
     @NonNull
     @Override
     public View getView(int position, View view, @NonNull ViewGroup parent) {
-        ChronoChatMessage message = getItem(position);
+        MessageRenderModel row = getRenderModel(position);
         ViewHolder viewHolder;
 
         if (view == null) {
@@ -71,81 +89,209 @@ class MessagesAdapter extends ArrayAdapter<ChronoChatMessage> {
             viewHolder = (ViewHolder) view.getTag();
         }
 
-        TextView usernameView = viewHolder.usernameView,
-                 messageTextView = viewHolder.messageTextView;
+        viewHolder.messageTextView.setText(row.text);
+        if (viewHolder.usernameView != null) viewHolder.usernameView.setText(row.from);
 
-        messageTextView.setText(message.getTimestampString() + ": ");
-        switch (message.getType().getNumber()) {
-            case ChatMessageType.CHAT_VALUE:
-                messageTextView.append(message.getData());
-                break;
-            case ChatMessageType.JOIN_VALUE:
-                messageTextView.append(getContext().getString(R.string.message_join));
-                break;
-            case ChatMessageType.LEAVE_VALUE:
-                messageTextView.append(getContext().getString(R.string.message_leave));
-                break;
-            case ChatMessageType.OTHER_VALUE:
-                messageTextView.append(getContext().getString(R.string.message_other));
-                break;
-            default:
-                messageTextView.append(getContext().getString(R.string.message_unhandled));
+        return view;
+    }
+
+    private MessageRenderModel getRenderModel(int position) {
+        return getItem(position).getRenderModel(getContext());
+    }
+
+    /* Works out the sent and startsGroup flags of the rows from first to last, inclusive, which
+     *   only change when rows are added or removed next to them.
+     */
+    private void updateRowFlags(int first, int last) {
+        last = Math.min(last, messages.size() - 1);
+        for (int position = Math.max(first, 0); position <= last; position++) {
+            MessageRenderModel row = getRenderModel(position);
+            row.sent = row.from.equals(loggedInUsername);
+            row.startsGroup = (position == 0) ||
+                    !row.from.equals(getRenderModel(position - 1).from);
         }
+    }
 
-        if (usernameView != null) usernameView.setText(message.getFrom());
+    /* Whether the store has messages before or after the window. */
+    boolean hasOlder() { return hasOlder; }
+    boolean hasNewer() { return hasNewer; }
 
-        return view;
+    long getOldestTimestamp() { return getItem(0).getTimestamp(); }
+    long getNewestTimestamp() { return getItem(getCount() - 1).getTimestamp(); }
+
+    /* The number of messages at the start of the window with the oldest timestamp, i.e. how many
+     *   MessageStore.loadOlder() should skip to page back from getOldestTimestamp().
+     */
+    int countAtOldestTimestamp() {
+        int count = 0, timestamp = getItem(0).getTimestamp();
+        while (count < getCount() && getItem(count).getTimestamp() == timestamp) count++;
+        return count;
     }
 
+    int countAtNewestTimestamp() {
+        int count = 0, last = getCount() - 1, timestamp = getItem(last).getTimestamp();
+        while (count <= last && getItem(last - count).getTimestamp() == timestamp) count++;
+        return count;
+    }
+
+    /* Empties the window; hasOlder says whether the store has messages from before it. */
+    void reset(boolean hasOlder) {
+        this.hasOlder = hasOlder;
+        hasNewer = false;
+        clear();
+    }
+
+    void setChangeListener(ChangeListener listener) { changeListener = listener; }
+
+    /* Adds a page of older messages at the start of the window, dropping the newest messages if
+     *   the window is full.
+     */
+    void prependPage(List<ChronoChatMessage> page, boolean morePages) {
+        hasOlder = morePages;
+        messages.addAll(0, page);
+        reportInserted(0, page.size());
+        int excess = messages.size() - MAX_WINDOW_SIZE;
+        if (excess > 0) {
+            int end = messages.size();
+            messages.subList(end - excess, end).clear();
+            hasNewer = true;
+            reportRemoved(end - excess, excess);
+        }
+        notifyDataSetChanged();
+    }
+
+    /* Adds a page of newer messages at the end of the window, dropping the oldest messages if the
+     *   window is full.
+     */
+    void appendPage(List<ChronoChatMessage> page, boolean morePages) {
+        hasNewer = morePages;
+        messages.addAll(page);
+        reportInserted(messages.size() - page.size(), page.size());
+        dropOldestOverflow();
+        notifyDataSetChanged();
+    }
+
+    private void dropOldestOverflow() {
+        int excess = messages.size() - MAX_WINDOW_SIZE;
+        if (excess <= 0) return;
+        messages.subList(0, excess).clear();
+        hasOlder = true;
+        reportRemoved(0, excess);
+    }
+
+    /* Adds a new message in timestamp order, after any with the same timestamp, if the window
+     *   reaches the newest message.
+     */
     @Override
     public void add(ChronoChatMessage message) {
-        int itemCount = getCount();
-        ChronoChatMessage lastMessage = null;
-        if (itemCount > 0) lastMessage = getItem(itemCount - 1);
-        super.add(message);
-        // Avoid re-sorting if we're clearly adding a new message to the end of the list
-        if (lastMessage != null &&
-                ChronoChatMessage.timestampOrder.compare(message, lastMessage) >= 0) {
-            notifyDataSetChanged();
-        } else {
-            sortByTimestamp();
-        }
+        if (hasNewer) return;
+        int position = positionAfter(messages, message.getTimestamp());
+        messages.add(position, message);
+        reportInserted(position, 1);
+        dropOldestOverflow();
+        notifyDataSetChanged();
     }
 
     @Override
-    public void addAll(ChronoChatMessage[] messages) {
-        super.addAll(messages);
-        sortByTimestamp();
+    public void addAll(ChronoChatMessage[] newMessages) {
+        addAll(Arrays.asList(newMessages));
     }
 
+    /* Like add(), for several messages at once: they're sorted among themselves and then merged
+     *   into the window in one pass, rather than re-sorting the whole window.
+     */
     @Override
-    public void addAll(Collection<? extends ChronoChatMessage> messages) {
-        super.addAll(messages);
-        sortByTimestamp();
+    public void addAll(Collection<? extends ChronoChatMessage> newMessages) {
+        if (hasNewer || newMessages.isEmpty()) return;
+        ArrayList<ChronoChatMessage> run = new ArrayList<>(newMessages);
+        Collections.sort(run, ChronoChatMessage.timestampOrder); // stable, so ties keep their order
+        int[] blockStarts = new int[run.size()], blockSizes = new int[run.size()];
+        int blockCount = merge(messages, run, blockStarts, blockSizes);
+        // first block first, so that each position is right given the blocks reported before it
+        for (int i = blockCount - 1; i >= 0; i--) reportInserted(blockStarts[i], blockSizes[i]);
+        dropOldestOverflow();
+        notifyDataSetChanged();
     }
 
+    /* Merges run into messages, both in timestamp order, putting each new message after those
+     *   already there with the same timestamp. Each message moves at most once. The new messages
+     *   can land anywhere, so where they did is noted in blockStarts and blockSizes as blocks of
+     *   adjacent positions, last block first; returns how many blocks there are.
+     */
+    static int merge(ArrayList<ChronoChatMessage> messages, List<ChronoChatMessage> run,
+                     int[] blockStarts, int[] blockSizes) {
+        int oldSize = messages.size(), runSize = run.size();
+        int firstChanged = positionAfter(messages, run.get(0).getTimestamp());
+        for (int i = 0; i < runSize; i++) messages.add(null);
+
+        // from the back, so nothing is overwritten before it has moved
+        int blockCount = 0;
+        int from = oldSize - 1, next = runSize - 1, to = oldSize + runSize - 1;
+        while (next >= 0) {
+            if (from >= firstChanged &&
+                    messages.get(from).getTimestamp() > run.get(next).getTimestamp()) {
+                messages.set(to--, messages.get(from--));
+            } else {
+                if (blockCount > 0 && blockStarts[blockCount - 1] == to + 1) {
+                    blockStarts[blockCount - 1] = to;
+                    blockSizes[blockCount - 1]++;
+                } else {
+                    blockStarts[blockCount] = to;
+                    blockSizes[blockCount++] = 1;
+                }
+                messages.set(to--, run.get(next--));
+            }
+        }
+        return blockCount;
+    }
+
+    /* Messages are always kept in timestamp order, so index is ignored. */
     @Override
     public void insert(ChronoChatMessage message, int index) {
-        super.insert(message, index);
-        sortByTimestamp();
+        add(message);
     }
 
     @Override
     public void remove(ChronoChatMessage message) {
-        super.remove(message);
+        int position = messages.indexOf(message);
+        if (position < 0) return;
+        messages.remove(position);
+        reportRemoved(position, 1);
         notifyDataSetChanged();
     }
 
     @Override
     public void clear() {
+        int count = messages.size();
         super.clear();
+        reportRemoved(0, count);
         notifyDataSetChanged();
     }
 
-    @Override
-    public void sort(Comparator<? super ChronoChatMessage> comparator) {
-        super.sort(comparator);
-        notifyDataSetChanged();
+    /* The position just past the last message with a timestamp at or before the given one. */
+    private static int positionAfter(List<ChronoChatMessage> messages, int timestamp) {
+        int low = 0, high = messages.size();
+        // messages usually arrive in order, so check the end before searching
+        if (high == 0 || messages.get(high - 1).getTimestamp() <= timestamp) return high;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (messages.get(middle).getTimestamp() <= timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void reportInserted(int position, int count) {
+        updateRowFlags(position, position + count); // and the row after them
+        if (changeListener != null && count > 0) changeListener.onMessagesInserted(position, count);
+    }
+
+    private void reportRemoved(int position, int count) {
+        updateRowFlags(position, position); // the row that now follows the removed ones
+        if (changeListener != null && count > 0) changeListener.onMessagesRemoved(position, count);
     }
 
     @Override
@@ -155,10 +301,6 @@ class MessagesAdapter extends ArrayAdapter<ChronoChatMessage> {
         setNotifyOnChange(false); // this flag gets reset to "true" by the superclass method
     }
 
-    public void sortByTimestamp() {
-        sort(ChronoChatMessage.timestampOrder);
-    }
-
     private View getInflatedView(int position, ViewGroup parent) {
         int type = getItemViewType(position), layout;
         switch (type) {
@@ -178,5 +320,8 @@ class MessagesAdapter extends ArrayAdapter<ChronoChatMessage> {
         return LayoutInflater.from(getContext()).inflate(layout, parent, false);
     }
 
-    void setLoggedInUsername(String username) { loggedInUsername = username; }
+    void setLoggedInUsername(String username) {
+        loggedInUsername = username;
+        updateRowFlags(0, messages.size() - 1);
+    }
 }
@@ -0,0 +1,53 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Name;
+import net.named_data.jndn.util.Blob;
+
+import java.nio.ByteBuffer;
+
+
+/* Session numbers and seqnums travel in names as decimal text components (".../1491234567/42"),
+ *   which is what ChronoSync2013 uses. These build and read such components straight from and to
+ *   bytes, without going through toEscapedString(), Long.parseLong() or new Name(String).
+ */
+final class NameComponents {
+
+    static final long NOT_A_NUMBER = -1;
+
+    private static final int MAX_DIGITS = 19; // Long.MAX_VALUE
+
+    private NameComponents() { }
+
+    static Name.Component fromDecimal(long number) {
+        if (number < 0) throw new IllegalArgumentException("negative number " + number);
+        int digits = 1;
+        for (long n = number / 10; n > 0; n /= 10) digits++;
+        byte[] value = new byte[digits];
+        for (int i = digits - 1; i >= 0; i--) {
+            value[i] = (byte) ('0' + (number % 10));
+            number /= 10;
+        }
+        return new Name.Component(new Blob(value, false)); // value isn't shared, so don't copy it
+    }
+
+    /* Reads a component written by fromDecimal(). Returns NOT_A_NUMBER for anything else,
+     *   including non-canonical forms such as leading zeros, so each number has exactly one name.
+     */
+    static long toDecimal(Name.Component component) {
+        Blob value = component.getValue();
+        int length = value.size();
+        if (length == 0 || length > MAX_DIGITS) return NOT_A_NUMBER;
+        ByteBuffer bytes = value.buf();
+        int start = bytes.position();
+        if (length > 1 && bytes.get(start) == '0') return NOT_A_NUMBER;
+
+        long number = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) return NOT_A_NUMBER;
+            number = number * 10 + digit;
+            if (number < 0) return NOT_A_NUMBER; // overflowed
+        }
+        return number;
+    }
+}
@@ -0,0 +1,56 @@
+package edu.ucla.cs.chronochat;
+
+import java.util.Locale;
+
+
+/* Counters for the network thread's event loop: how often it wakes up, how many of those wakeups
+ *   found nothing to do, how many events each wakeup handled, how long locally sent data waited
+ *   before its seqnum was published and how much received data was dropped as duplicate. Only
+ *   touched by the network thread.
+ */
+class NetworkLoopStats {
+
+    private long wakeups, idleWakeups, events, maxEventsPerWakeup,
+                 publishes, totalPublishDelayNanos, maxPublishDelayNanos, duplicates;
+    private long periodStartNanos = System.nanoTime();
+
+
+    void recordWakeup(int eventCount) {
+        wakeups++;
+        if (eventCount == 0) idleWakeups++;
+        events += eventCount;
+        if (eventCount > maxEventsPerWakeup) maxEventsPerWakeup = eventCount;
+    }
+
+    void recordPublishDelay(long delayNanos) {
+        publishes++;
+        totalPublishDelayNanos += delayNanos;
+        if (delayNanos > maxPublishDelayNanos) maxPublishDelayNanos = delayNanos;
+    }
+
+    void recordDuplicate() {
+        duplicates++;
+    }
+
+    long getNanosSincePeriodStart() {
+        return System.nanoTime() - periodStartNanos;
+    }
+
+    void reset() {
+        wakeups = idleWakeups = events = maxEventsPerWakeup = 0;
+        publishes = totalPublishDelayNanos = maxPublishDelayNanos = duplicates = 0;
+        periodStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        double seconds = getNanosSincePeriodStart() / 1e9;
+        return String.format(Locale.US,
+                "%d wakeups in %.1f s (%.2f/s, %d idle), %.2f events/wakeup (max %d), " +
+                "%d publishes (avg delay %.2f ms, max %.2f ms), %d duplicates dropped",
+                wakeups, seconds, wakeups / seconds, idleWakeups,
+                (wakeups == 0) ? 0.0 : (double) events / wakeups, maxEventsPerWakeup,
+                publishes, (publishes == 0) ? 0.0 : totalPublishDelayNanos / 1e6 / publishes,
+                maxPublishDelayNanos / 1e6, duplicates);
+    }
+}
@@ -0,0 +1,136 @@
+package edu.ucla.cs.chronochat;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/* Compression for Data payloads big enough to gain from it, such as long pastes and batches.
+ *
+ *   A compressed payload starts with COMPRESSED_MARKER, which like PayloadFrames' marker can't be
+ *   the first byte of a protobuf message. Then comes a version byte, the size of the original
+ *   payload as a varint, and the payload deflated (zlib format) with DICTIONARY preset, which
+ *   gives short messages something to refer back to. The original payload can be anything
+ *   deliverApplicationData() understands, framed or not.
+ *
+ *   The Deflater and Inflater are kept between calls, so an instance must only be used from one
+ *   thread.
+ */
+final class PayloadCompression {
+
+    static final int COMPRESSED_MARKER = 0x02,
+                     VERSION = 1,
+                     HEADER_SIZE = 2;
+    // below this, the zlib header and trailer eat most of what deflate could save
+    static final int MIN_COMPRESSED_SIZE = 256;
+    // no payload we publish is anywhere near this; it bounds what a bad packet can make us allocate
+    static final int MAX_ORIGINAL_SIZE = 1024 * 1024;
+
+    // Common chat text; the most common strings go last, where they're cheapest to refer to.
+    // Every peer must use exactly the same dictionary for a given VERSION, so never change it.
+    private static final byte[] DICTIONARY = (
+            "http://https://www.youtube.com/watch?v=.com/.org/.html" +
+            "thank you so much for the help, see you tomorrow morning at the meeting " +
+            "what do you think about this? I don't know, maybe we should wait and see " +
+            "please let me know when you are ready, I will be there in a few minutes " +
+            "sorry, I can't make it today but I'll be around later this afternoon " +
+            "does anyone have the link to the slides from the last presentation " +
+            "that sounds good to me, let's do it then and talk about it after lunch " +
+            "I think it would be better if we could have a look at it together first " +
+            "the quick brown fox jumps over the lazy dog. Hello everyone, how are you doing? " +
+            "yes, no, okay, thanks! haha lol :) that's great, I'm not sure what you mean. " +
+            "I have a question about the message that was sent in the chatroom yesterday. " +
+            "the and to of a in that is it for you on with this was be are have not but at"
+    ).getBytes(Charset.forName("UTF-8"));
+
+    private Deflater deflater;
+    private Inflater inflater;
+
+
+    static boolean isCompressed(byte[] payload) {
+        return payload.length >= HEADER_SIZE && payload[0] == COMPRESSED_MARKER;
+    }
+
+    /* The payload compressed, or the payload itself if it's small or compressing doesn't make it
+     *   any smaller.
+     */
+    byte[] compress(byte[] payload) {
+        if (payload.length < MIN_COMPRESSED_SIZE || payload.length > MAX_ORIGINAL_SIZE)
+            return payload;
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+
+        // anything that doesn't fit in the original's size isn't worth sending
+        byte[] compressed = new byte[payload.length];
+        compressed[0] = COMPRESSED_MARKER;
+        compressed[1] = VERSION;
+        int size = HEADER_SIZE + writeVarint(payload.length, compressed, HEADER_SIZE);
+        while (!deflater.finished() && size < compressed.length) {
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        if (!deflater.finished()) return payload;
+        return Arrays.copyOf(compressed, size);
+    }
+
+    /* Inflates straight into a buffer of the original payload's size. */
+    byte[] decompress(byte[] payload) throws IOException {
+        if (!isCompressed(payload)) throw new IOException("not a compressed payload");
+        if (payload[1] != VERSION) throw new IOException("unsupported compression version " +
+                payload[1]);
+        CodedInputStream in = CodedInputStream.newInstance(payload, HEADER_SIZE,
+                payload.length - HEADER_SIZE);
+        int originalSize = in.readUInt32();
+        if (originalSize < 0 || originalSize > MAX_ORIGINAL_SIZE)
+            throw new IOException("bad original size " + originalSize);
+        int dataStart = HEADER_SIZE + in.getTotalBytesRead();
+
+        if (inflater == null) inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(payload, dataStart, payload.length - dataStart);
+        byte[] original = new byte[originalSize];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(original, size, originalSize - size);
+                size += inflated;
+                if (inflated > 0) continue;
+                if (!inflater.needsDictionary()) break; // out of input or of room; checked below
+                inflater.setDictionary(DICTIONARY);
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("malformed compressed payload", e);
+        }
+        if (!inflater.finished() || size != originalSize || inflater.getRemaining() != 0)
+            throw new IOException("compressed payload doesn't match its original size " +
+                    originalSize);
+        return original;
+    }
+
+    /* Frees the native zlib state; the next call starts afresh. */
+    void close() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+
+    private static int writeVarint(int value, byte[] buffer, int offset) {
+        int size = CodedOutputStream.computeUInt32SizeNoTag(value);
+        CodedOutputStream out = CodedOutputStream.newInstance(buffer, offset, size);
+        try {
+            out.writeUInt32NoTag(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("varint size miscalculated", e); // can't happen
+        }
+        return size;
+    }
+}
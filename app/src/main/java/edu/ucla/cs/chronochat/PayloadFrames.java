@@ -0,0 +1,79 @@
+package edu.ucla.cs.chronochat;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Framing for Data payloads that carry several application messages under one seqnum.
+ *
+ *   A framed payload starts with FRAME_MARKER, which can't be the first byte of a protobuf message
+ *   (field number 0 is invalid), so it can be told apart from a bare message in the old format.
+ *   Then comes a version byte, the record count as a varint, and each record as a varint length
+ *   followed by its bytes.
+ */
+final class PayloadFrames {
+
+    static final int FRAME_MARKER = 0x00,
+                     VERSION = 1,
+                     HEADER_SIZE = 2;
+
+    private PayloadFrames() { }
+
+    static boolean isFramed(byte[] payload) {
+        return payload.length >= HEADER_SIZE && payload[0] == FRAME_MARKER;
+    }
+
+    /* Space taken by one record inside a frame. */
+    static int getRecordSize(byte[] record) {
+        return CodedOutputStream.computeUInt32SizeNoTag(record.length) + record.length;
+    }
+
+    /* Size of a frame holding recordCount records whose getRecordSize() values add up to
+     *   recordsSize.
+     */
+    static int getFrameSize(int recordCount, int recordsSize) {
+        return HEADER_SIZE + CodedOutputStream.computeUInt32SizeNoTag(recordCount) + recordsSize;
+    }
+
+    static byte[] encode(List<byte[]> records) {
+        int recordsSize = 0;
+        for (byte[] record : records) recordsSize += getRecordSize(record);
+        int size = getFrameSize(records.size(), recordsSize);
+
+        byte[] frame = new byte[size];
+        frame[0] = FRAME_MARKER;
+        frame[1] = VERSION;
+        CodedOutputStream out = CodedOutputStream.newInstance(frame, HEADER_SIZE,
+                size - HEADER_SIZE);
+        try {
+            out.writeUInt32NoTag(records.size());
+            for (byte[] record : records) {
+                out.writeUInt32NoTag(record.length);
+                out.writeRawBytes(record);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("frame size miscalculated", e); // can't happen
+        }
+        return frame;
+    }
+
+    static List<byte[]> decode(byte[] frame) throws IOException {
+        if (!isFramed(frame)) throw new IOException("not a framed payload");
+        if (frame[1] != VERSION) throw new IOException("unsupported frame version " + frame[1]);
+        CodedInputStream in = CodedInputStream.newInstance(frame, HEADER_SIZE,
+                frame.length - HEADER_SIZE);
+        int count = in.readUInt32();
+        if (count < 0 || count > frame.length) throw new IOException("bad record count " + count);
+        List<byte[]> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(in.readRawBytes(in.readUInt32()));
+        }
+        if (!in.isAtEnd()) throw new IOException("trailing bytes after last record");
+        return records;
+    }
+}
@@ -0,0 +1,102 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Name;
+import net.named_data.jndn.encoding.EncodingException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/* Segmentation of payloads too big for one Data packet.
+ *
+ *   A payload of up to SEGMENT_SIZE bytes is published as one Data named for its seqnum (see
+ *   DataNames). A bigger one is split into SEGMENT_SIZE-byte segments (the last one shorter),
+ *   named for the seqnum followed by NDN segment components, each carrying the last segment's
+ *   component as its FinalBlockId. An interest for the bare seqnum is answered with segment 0,
+ *   which tells the consumer how many more there are to fetch.
+ */
+final class PayloadSegments {
+
+    static final long NO_SEGMENT = -1;
+    // leaves room for the name and signature within NDN's 8800-byte packet limit
+    static final int SEGMENT_SIZE = 7000;
+    // bounds what a bad FinalBlockId can make a consumer allocate
+    static final int MAX_SEGMENTS = 256,
+                     MAX_PAYLOAD_SIZE = MAX_SEGMENTS * SEGMENT_SIZE;
+    private static final int MAX_SEGMENT_SIZE = 8800;
+
+    private PayloadSegments() { }
+
+    static int getSegmentCount(int payloadSize) {
+        return Math.max(1, (payloadSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    /* A view of the segment's bytes within the payload; nothing is copied. */
+    static ByteBuffer getSegment(ByteBuffer payload, int segment) {
+        int start = payload.position() + segment * SEGMENT_SIZE;
+        ByteBuffer view = payload.duplicate();
+        view.position(start);
+        view.limit(Math.min(start + SEGMENT_SIZE, payload.limit()));
+        return view.slice();
+    }
+
+    /* Reads a segment component, returning NO_SEGMENT for anything else, including segment
+     *   numbers of MAX_SEGMENTS or more.
+     */
+    static long toSegment(Name.Component component) {
+        if (component == null || !component.isSegment()) return NO_SEGMENT;
+        try {
+            long segment = component.toSegment();
+            return (segment >= 0 && segment < MAX_SEGMENTS) ? segment : NO_SEGMENT;
+        } catch (EncodingException e) {
+            return NO_SEGMENT;
+        }
+    }
+
+    /* Puts a segmented payload back together, copying each segment into place as it arrives, in
+     *   any order. All segments but the last must be the size of segment 0.
+     */
+    static class Reassembly {
+        private final int lastSegment, segmentSize;
+        private final byte[] buffer;
+        private final BitSet received;
+        private int receivedCount = 0, size;
+
+        Reassembly(long lastSegment, ByteBuffer firstSegment) throws IOException {
+            if (lastSegment < 0 || lastSegment >= MAX_SEGMENTS)
+                throw new IOException("bad last segment " + lastSegment);
+            segmentSize = firstSegment.remaining();
+            if (segmentSize == 0 || segmentSize > MAX_SEGMENT_SIZE)
+                throw new IOException("bad segment size " + segmentSize);
+            this.lastSegment = (int) lastSegment;
+            buffer = new byte[segmentSize * (this.lastSegment + 1)];
+            received = new BitSet(this.lastSegment + 1);
+            add(0, firstSegment);
+        }
+
+        int getLastSegment() { return lastSegment; }
+
+        /* Copies in the segment, unless it's already here. */
+        void add(long segment, ByteBuffer content) throws IOException {
+            if (segment < 0 || segment > lastSegment)
+                throw new IOException("no segment " + segment);
+            int length = content.remaining();
+            if ((segment < lastSegment) ? length != segmentSize : length > segmentSize)
+                throw new IOException("segment " + segment + " has " + length + " bytes");
+            if (received.get((int) segment)) return;
+            content.duplicate().get(buffer, (int) segment * segmentSize, length);
+            received.set((int) segment);
+            receivedCount++;
+            if (segment == lastSegment) size = lastSegment * segmentSize + length;
+        }
+
+        boolean isComplete() { return receivedCount == lastSegment + 1; }
+
+        byte[] getPayload() {
+            if (!isComplete()) throw new IllegalStateException("segments still missing");
+            return (size == buffer.length) ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Name;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/* What we know about each producer session we sync with: the highest seqnum announced, which
+ *   seqnums have arrived and which are still being fetched. A producer session is one data prefix
+ *   and session number, and gets a small integer ID when first seen.
+ *
+ *   Per session, everything below the low-water mark has arrived. Above it, two bitmaps record the
+ *   received and outstanding seqnums up to the highest one announced; a seqnum that is in neither
+ *   was given up on, which leaves an exact record of the gaps. Words below the low-water mark are
+ *   dropped from the front of the bitmaps, so a session that has caught up takes only a few fields
+ *   of memory.
+ *
+ *   Not thread-safe; the network thread owns it.
+ */
+class ProducerTable {
+
+    static class Session {
+        final int id;
+        final String dataPrefix;
+        final long session;
+        final Name prefix;  // /<data prefix>/<session>
+        final String name;  // canonical URI of prefix, which identifies the session
+        private long lowWaterMark = 0, highestKnown = -1;
+        private long baseSeqNum = 0;                    // seqnum of bit 0 of word 0
+        private long[] received = EMPTY, outstanding = EMPTY;
+        private long receivedCount = 0, abandonedCount = 0;
+
+        private Session(int id, String dataPrefix, long session) {
+            this.id = id;
+            this.dataPrefix = dataPrefix;
+            this.session = session;
+            this.prefix = new Name(dataPrefix).append(NameComponents.fromDecimal(session));
+            this.name = prefix.toUri();
+        }
+
+        long getLowWaterMark() { return lowWaterMark; }
+        long getHighestKnown() { return highestKnown; }
+        long getReceivedCount() { return receivedCount; }
+        long getAbandonedCount() { return abandonedCount; }
+
+        boolean isReceived(long seqNum) {
+            return seqNum < lowWaterMark || getBit(received, seqNum);
+        }
+
+        boolean isOutstanding(long seqNum) {
+            return getBit(outstanding, seqNum);
+        }
+
+        /* Seqnums above the low-water mark that are known to exist but have neither arrived nor
+         *   are being fetched, i.e. were given up on.
+         */
+        long getGapCount() {
+            long count = 0;
+            for (int word = 0; word < received.length; word++)
+                count += Long.bitCount(~(received[word] | outstanding[word]) & knownMask(word));
+            return count;
+        }
+
+        // bits of the word that stand for seqnums in [lowWaterMark, highestKnown]
+        private long knownMask(int word) {
+            long first = baseSeqNum + ((long) word << 6), mask = -1L;
+            if (lowWaterMark > first)
+                mask &= (lowWaterMark - first >= 64) ? 0 : -1L << (lowWaterMark - first);
+            if (highestKnown < first + 63)
+                mask &= (highestKnown < first) ? 0 : -1L >>> (63 - (highestKnown - first));
+            return mask;
+        }
+
+        private boolean getBit(long[] bits, long seqNum) {
+            long bit = seqNum - baseSeqNum;
+            if (bit < 0 || (bit >>> 6) >= bits.length) return false;
+            return (bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+        }
+
+        private void setBit(long[] bits, long seqNum, boolean value) {
+            long bit = seqNum - baseSeqNum;
+            int word = (int) (bit >>> 6);
+            if (value) bits[word] |= (1L << bit);
+            else bits[word] &= ~(1L << bit);
+        }
+
+        /* Makes the bitmaps cover seqnums up to seqNum. */
+        private void growTo(long seqNum) {
+            int words = (int) ((seqNum - baseSeqNum) >>> 6) + 1;
+            if (words <= received.length) return;
+            int capacity = Math.max(words, received.length * 2);
+            received = Arrays.copyOf(received, capacity);
+            outstanding = Arrays.copyOf(outstanding, capacity);
+        }
+
+        /* Moves the low-water mark past received seqnums, and past old gaps once they make the
+         *   bitmaps span more than MAX_TRACKED_SEQNUMS, then drops the words below it.
+         */
+        private void advanceLowWaterMark() {
+            while (lowWaterMark <= highestKnown && (getBit(received, lowWaterMark) ||
+                    highestKnown - lowWaterMark >= MAX_TRACKED_SEQNUMS &&
+                            !getBit(outstanding, lowWaterMark))) {
+                lowWaterMark++;
+            }
+            int settledWords = (int) ((lowWaterMark - baseSeqNum) >>> 6);
+            if (settledWords == 0) return;
+            if (settledWords >= received.length) {
+                received = outstanding = EMPTY;
+            } else {
+                received = Arrays.copyOfRange(received, settledWords, received.length);
+                outstanding = Arrays.copyOfRange(outstanding, settledWords, outstanding.length);
+            }
+            baseSeqNum += (long) settledWords << 6;
+        }
+    }
+
+    private static final long[] EMPTY = new long[0];
+    // gaps older than this many seqnums behind the newest are forgotten (they stay counted)
+    private static final long MAX_TRACKED_SEQNUMS = 4096;
+
+    private static class Producer {
+        final String dataPrefix;
+        final ArrayList<Session> sessions = new ArrayList<>(1); // usually just one
+        Session latest;
+
+        Producer(String dataPrefix) { this.dataPrefix = dataPrefix; }
+    }
+
+    private final HashMap<String, Producer> producers = new HashMap<>();
+    private final ArrayList<Session> sessionsById = new ArrayList<>();
+
+
+    /* Returns the state of a producer session, or null if it hasn't been seen. */
+    Session find(String dataPrefix, long session) {
+        Producer producer = producers.get(dataPrefix);
+        return (producer == null) ? null : findSession(producer, session);
+    }
+
+    Session getOrCreate(String dataPrefix, long session) {
+        Producer producer = producers.get(dataPrefix);
+        if (producer == null) {
+            producer = new Producer(dataPrefix);
+            producers.put(dataPrefix, producer);
+        }
+        Session state = findSession(producer, session);
+        if (state == null) {
+            state = new Session(sessionsById.size(), dataPrefix, session);
+            sessionsById.add(state);
+            producer.sessions.add(state);
+        }
+        producer.latest = state;
+        return state;
+    }
+
+    Session get(int id) {
+        return (id >= 0 && id < sessionsById.size()) ? sessionsById.get(id) : null;
+    }
+
+    int size() { return sessionsById.size(); }
+
+    /* Records that the producer session has published up to seqNum. The seqnums from
+     *   getHighestKnown() + 1 to seqNum are new and are marked outstanding; the caller is expected
+     *   to fetch them. Returns false if there weren't any new seqnums.
+     */
+    boolean announce(Session state, long seqNum) {
+        if (seqNum <= state.highestKnown) return false;
+        long first = state.highestKnown + 1;
+        state.growTo(seqNum);
+        for (long s = Math.max(first, state.lowWaterMark); s <= seqNum; s++)
+            state.setBit(state.outstanding, s, true);
+        state.highestKnown = seqNum;
+        return true;
+    }
+
+    /* What the service does with a sync state saying that the producer session has published up
+     *   to seqNum: creates the session if this is the first state seen for it, skipping what it
+     *   published before unless fetchStale, then announces and queues in the pipeline any new
+     *   seqnums. Returns true if those are news, i.e. the session had been seen before, since the
+     *   first state a sync group reports for a producer may be stale.
+     */
+    boolean onSyncState(String dataPrefix, long session, long seqNum, boolean fetchStale,
+                        FetchPipeline pipeline) {
+        Session state = find(dataPrefix, session);
+        boolean firstSighting = (state == null);
+        if (firstSighting) {
+            state = getOrCreate(dataPrefix, session);
+            if (!fetchStale) skipTo(state, seqNum);
+        }
+        long first = state.highestKnown + 1;
+        if (!announce(state, seqNum)) return false;
+        pipeline.request(state.id, first, seqNum);
+        return !firstSighting;
+    }
+
+    /* Treats everything up to seqNum as settled without fetching it (for stale data we don't
+     *   want to retrieve).
+     */
+    void skipTo(Session state, long seqNum) {
+        if (seqNum < state.lowWaterMark) return;
+        state.highestKnown = Math.max(state.highestKnown, seqNum);
+        state.lowWaterMark = seqNum + 1;
+        state.advanceLowWaterMark();
+    }
+
+    /* Records the arrival of seqNum. Returns false if it had already arrived (or was settled), in
+     *   which case the data is a duplicate and should be dropped.
+     */
+    boolean markReceived(Session state, long seqNum) {
+        if (seqNum < state.lowWaterMark) return false;
+        if (seqNum > state.highestKnown) {
+            // not announced yet, so the bitmaps can't place it; let it through
+            return true;
+        }
+        if (state.getBit(state.received, seqNum)) return false;
+        state.setBit(state.received, seqNum, true);
+        state.setBit(state.outstanding, seqNum, false);
+        state.receivedCount++;
+        state.advanceLowWaterMark();
+        return true;
+    }
+
+    /* Records that fetching seqNum was given up on. Returns false if it wasn't outstanding. */
+    boolean markAbandoned(Session state, long seqNum) {
+        if (seqNum < state.lowWaterMark || !state.isOutstanding(seqNum)) return false;
+        state.setBit(state.outstanding, seqNum, false);
+        state.abandonedCount++;
+        state.advanceLowWaterMark();
+        return true;
+    }
+
+    private static Session findSession(Producer producer, long session) {
+        if (producer.latest != null && producer.latest.session == session) return producer.latest;
+        for (Session state : producer.sessions) {
+            if (state.session == session) return state;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,144 @@
+package edu.ucla.cs.chronochat;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/* Hands the messages the service receives on the network thread to the UI on the main thread, in
+ *   batches: at most once per display frame while a listener is set, and all at once when one is
+ *   set again. The messages go through a fixed-size ring without locks; the network thread is the
+ *   only producer and the main thread the only consumer. Every message is already in the
+ *   MessageStore, so if the ring fills up (say, while the UI is hidden) new messages are dropped,
+ *   and the listener is told to reload from the store.
+ */
+class ReceivedMessageQueue {
+
+    interface Listener {
+        /* storeSequences[i] is messages.get(i)'s store sequence number (see MessageStore). If
+         *   messagesDropped is set, some messages received since the last batch were dropped.
+         */
+        void onMessagesReceived(List<ChronoChatMessage> messages, long[] storeSequences,
+                                boolean messagesDropped);
+    }
+
+    private static final long FRAME_MILLIS = 16; // used where there's no Choreographer
+
+    private final ChronoChatMessage[] messages;
+    private final long[] storeSequences;
+    private final int mask;
+    // head is the next slot to read and is written by the consumer only; tail is the next slot
+    // to write and is written by the producer only
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    private final AtomicBoolean messagesDropped = new AtomicBoolean(),
+                                deliveryScheduled = new AtomicBoolean();
+    private volatile Listener listener;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Object frameCallback; // a FrameCallback, where there is a Choreographer; main thread
+
+    private final Runnable scheduleDelivery = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                if (frameCallback == null) frameCallback = new FrameCallback(deliver);
+                ((FrameCallback) frameCallback).post();
+            } else {
+                mainHandler.postDelayed(deliver, FRAME_MILLIS);
+            }
+        }
+    };
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliveryScheduled.set(false);
+            deliver();
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallback implements Choreographer.FrameCallback {
+        private final Runnable runnable;
+
+        FrameCallback(Runnable runnable) { this.runnable = runnable; }
+
+        void post() { Choreographer.getInstance().postFrameCallback(this); }
+
+        @Override
+        public void doFrame(long frameTimeNanos) { runnable.run(); }
+    }
+
+
+    /* capacity must be a power of two. */
+    ReceivedMessageQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        messages = new ChronoChatMessage[capacity];
+        storeSequences = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /* Producer side: call from the network thread only. */
+    void add(ChronoChatMessage message, long storeSequence) {
+        long t = tail.get();
+        if (t - head.get() == messages.length) {
+            messagesDropped.set(true);
+        } else {
+            int slot = (int) t & mask;
+            messages[slot] = message;
+            storeSequences[slot] = storeSequence;
+            tail.lazySet(t + 1); // publishes the slot
+        }
+        if (listener != null && deliveryScheduled.compareAndSet(false, true))
+            mainHandler.post(scheduleDelivery);
+    }
+
+    /* Consumer side, like everything below: call from the main thread. Setting a listener
+     *   delivers what's queued right away; with no listener, messages wait in the ring.
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener != null) deliver();
+    }
+
+    /* Throws away whatever is queued. */
+    void clear() {
+        drain(null);
+        messagesDropped.set(false);
+    }
+
+    private void deliver() {
+        Listener listener = this.listener;
+        if (listener == null) return;
+        boolean dropped = messagesDropped.getAndSet(false);
+        int count = (int) (tail.get() - head.get());
+        if (count == 0 && !dropped) return;
+        ArrayList<ChronoChatMessage> batch = new ArrayList<>(count);
+        long[] sequences = drain(batch);
+        listener.onMessagesReceived(batch, sequences, dropped);
+    }
+
+    /* Takes everything out of the ring, into batch if it isn't null, and returns the messages'
+     *   store sequence numbers.
+     */
+    private long[] drain(ArrayList<ChronoChatMessage> batch) {
+        long h = head.get(), t = tail.get();
+        long[] sequences = new long[(int) (t - h)];
+        for (long i = h; i < t; i++) {
+            int slot = (int) i & mask;
+            if (batch != null) batch.add(messages[slot]);
+            sequences[(int) (i - h)] = storeSequences[slot];
+            messages[slot] = null;
+        }
+        head.lazySet(t); // hands the slots back to the producer
+        return sequences;
+    }
+}
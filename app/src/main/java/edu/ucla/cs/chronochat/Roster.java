@@ -0,0 +1,156 @@
+package edu.ucla.cs.chronochat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* The users in a chatroom. A user who hasn't been heard from for timeoutMillis is assumed to have
+ *   left without saying so, and removeZombies() takes them out within a tick of their deadline.
+ *   The local user never leaves the roster this way.
+ *
+ *   Deadlines are kept in a hashed timing wheel: each user is linked into the slot of the tick
+ *   their deadline falls in, so hearing from someone moves them between slots in constant time,
+ *   and a sweep only looks at the slots whose ticks have passed. With a tick of timeoutMillis /
+ *   TICKS_PER_TIMEOUT the wheel spans two timeouts, so a slot rarely holds users due on a later
+ *   turn of the wheel; they're checked for, though, and stay put.
+ *
+ *   Times are in milliseconds from any monotonic clock. Not thread-safe; the network thread owns
+ *   it. Other threads read it through getSnapshot(), and can follow it through a listener, which
+ *   is told of each join, leave and rejoin on the thread that made it.
+ */
+class Roster {
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int TICKS_PER_TIMEOUT = 16,
+                             SLOTS = 2 * TICKS_PER_TIMEOUT;
+
+    private static class Entry {
+        final String username;
+        long deadlineTick;
+        Entry previous = this, next = this; // in its slot's ring; linked to itself when in none
+
+        Entry(String username) { this.username = username; }
+
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = next = this;
+        }
+
+        void linkBefore(Entry slot) {
+            previous = slot.previous;
+            next = slot;
+            previous.next = this;
+            slot.previous = this;
+        }
+    }
+
+    private final String localUsername;
+    private final long timeoutMillis, tickMillis;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final Entry[] slots = new Entry[SLOTS]; // sentinels of each slot's ring
+    private long lastSweptTick;
+    private volatile RosterSnapshot snapshot;
+    private RosterSnapshot.Listener listener;
+
+
+    Roster(String localUsername, long timeoutMillis, long now) {
+        this.localUsername = localUsername;
+        this.timeoutMillis = timeoutMillis;
+        tickMillis = Math.max(1, timeoutMillis / TICKS_PER_TIMEOUT);
+        for (int i = 0; i < SLOTS; i++) slots[i] = new Entry(null);
+        lastSweptTick = now / tickMillis;
+        entries.put(localUsername, new Entry(localUsername)); // in no slot, so never times out
+        snapshot = RosterSnapshot.of(0, localUsername);
+    }
+
+    void setListener(RosterSnapshot.Listener listener) {
+        this.listener = listener;
+    }
+
+    boolean contains(String username) {
+        return entries.containsKey(username);
+    }
+
+    /* The usernames as of the latest change. Safe to call from any thread. */
+    RosterSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /* Records a message from the user, received at now. */
+    void update(String from, ChatMessageType type, long now) {
+        if (from.equals(localUsername)) return;
+        Entry entry = entries.get(from);
+        if (type == ChatMessageType.LEAVE) {
+            if (entry != null) {
+                entry.unlink();
+                entries.remove(from);
+                publish(RosterSnapshot.Change.Kind.LEFT, from);
+            }
+            return;
+        }
+        if (entry == null) {
+            entry = new Entry(from);
+            entries.put(from, entry);
+            publish(RosterSnapshot.Change.Kind.JOINED, from);
+        } else {
+            entry.unlink();
+            // still here from their last session, which ended without a LEAVE we heard
+            if (type == ChatMessageType.JOIN) publish(RosterSnapshot.Change.Kind.UPDATED, from);
+        }
+        // rounded up, so nobody is swept before their deadline
+        entry.deadlineTick = (now + timeoutMillis + tickMillis - 1) / tickMillis;
+        entry.linkBefore(slots[(int) (entry.deadlineTick % SLOTS)]);
+    }
+
+    /* Removes and returns the users whose deadlines have passed by now. */
+    List<String> removeZombies(long now) {
+        List<String> zombies = new ArrayList<>();
+        long nowTick = now / tickMillis;
+        // past a full turn of the wheel, every slot has been looked at once
+        long lastTick = Math.min(nowTick, lastSweptTick + SLOTS);
+        for (long tick = lastSweptTick + 1; tick <= lastTick; tick++) {
+            Entry slot = slots[(int) (tick % SLOTS)];
+            for (Entry entry = slot.next, next; entry != slot; entry = next) {
+                next = entry.next;
+                if (entry.deadlineTick > nowTick) continue; // due on a later turn
+                entry.unlink();
+                entries.remove(entry.username);
+                zombies.add(entry.username);
+                publish(RosterSnapshot.Change.Kind.LEFT, entry.username);
+            }
+        }
+        lastSweptTick = Math.max(lastSweptTick, nowTick);
+        return zombies;
+    }
+
+    /* When removeZombies() should next be called, or NO_DEADLINE if nobody can time out. Can be
+     *   early, never late.
+     */
+    long getNextDeadline() {
+        for (long tick = lastSweptTick + 1; tick <= lastSweptTick + SLOTS; tick++) {
+            Entry slot = slots[(int) (tick % SLOTS)];
+            if (slot.next != slot) return tick * tickMillis;
+        }
+        return NO_DEADLINE;
+    }
+
+    private void publish(RosterSnapshot.Change.Kind kind, String username) {
+        switch (kind) {
+            case JOINED:
+                snapshot = snapshot.with(username);
+                break;
+            case LEFT:
+                snapshot = snapshot.without(username);
+                break;
+            default:
+                snapshot = snapshot.next();
+        }
+        if (listener != null)
+            listener.onRosterChanged(new RosterSnapshot.Change(kind, username, snapshot));
+    }
+}
@@ -5,28 +5,65 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.widget.ArrayAdapter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 
+/* Shows the roster, kept up to date with the changes MainActivity passes on while it's open. */
 public class RosterDialogFragment extends DialogFragment {
 
+    private RosterSnapshot roster;
+    private ArrayAdapter<String> usernames;
+
+    static Bundle newArguments(RosterSnapshot roster) {
+        Bundle args = new Bundle();
+        args.putStringArray(ChronoChatService.EXTRA_ROSTER, roster.toArray());
+        args.putLong(ChronoChatService.EXTRA_ROSTER_VERSION, roster.getVersion());
+        return args;
+    }
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
 
-        String[] roster = getArguments().getStringArray(ChronoChatService.EXTRA_ROSTER);
-        if (roster != null)
-            Arrays.sort(roster, String.CASE_INSENSITIVE_ORDER);
+        Bundle args = getArguments();
+        roster = RosterSnapshot.of(args.getLong(ChronoChatService.EXTRA_ROSTER_VERSION),
+                args.getStringArray(ChronoChatService.EXTRA_ROSTER));
+        usernames = new ArrayAdapter<>(getActivity(), android.R.layout.select_dialog_item,
+                new ArrayList<>(Arrays.asList(roster.toArray())));
 
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         builder.setTitle(R.string.dialog_roster)
                 .setPositiveButton(R.string.dismiss_roster, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) { }
                 })
-                .setItems(roster, new DialogInterface.OnClickListener() {
+                .setAdapter(usernames, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) { }
                 });
 
         return builder.create();
     }
+
+    /* Applies the change to the list if it follows the roster shown, and otherwise shows its
+     *   snapshot instead.
+     */
+    void onRosterChanged(RosterSnapshot.Change change) {
+        if (usernames == null) return; // no dialog yet
+        if (change.follows(roster.getVersion())) {
+            if (change.kind == RosterSnapshot.Change.Kind.JOINED) {
+                usernames.insert(change.username, change.snapshot.indexOf(change.username));
+            } else if (change.kind == RosterSnapshot.Change.Kind.LEFT) {
+                usernames.remove(change.username);
+            } // an UPDATED user is listed as before
+        } else {
+            usernames.setNotifyOnChange(false);
+            usernames.clear();
+            usernames.addAll(change.snapshot.toArray());
+            usernames.notifyDataSetChanged(); // also turns notifying on changes back on
+        }
+        roster = change.snapshot;
+        // recreated from its arguments, e.g. on rotation
+        getArguments().putAll(newArguments(roster));
+    }
 }
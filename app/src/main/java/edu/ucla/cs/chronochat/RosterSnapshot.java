@@ -0,0 +1,115 @@
+package edu.ucla.cs.chronochat;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/* An immutable, versioned copy of a Roster's usernames, in display order, which any thread may
+ *   read without locking. The roster never changes a snapshot: whenever someone joins, leaves or
+ *   starts over in a new session it publishes a new one with the next version, along with a
+ *   Change saying who it was. Making the new snapshot copies the array once around the one
+ *   username, rather than sorting again, or not at all if the usernames stay the same.
+ */
+final class RosterSnapshot {
+
+    /* Case-insensitive, with ties broken by case so that every username has one place. */
+    static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int order = String.CASE_INSENSITIVE_ORDER.compare(a, b);
+            return (order != 0) ? order : a.compareTo(b);
+        }
+    };
+
+    static final RosterSnapshot EMPTY = new RosterSnapshot(0, new String[0]);
+
+    interface Listener {
+        void onRosterChanged(Change change);
+    }
+
+    /* The difference between a snapshot and the one before it, or a RESET when the roster was
+     *   started over, or the listener may have missed changes, and only the snapshot is to be
+     *   trusted. UPDATED is for a user still in the roster who joined again, e.g. after a restart
+     *   whose LEAVE never reached us; the usernames stay the same.
+     */
+    static final class Change {
+        enum Kind { JOINED, LEFT, UPDATED, RESET }
+
+        final Kind kind;
+        final String username; // null for a RESET
+        final RosterSnapshot snapshot; // the roster after the change
+
+        Change(Kind kind, String username, RosterSnapshot snapshot) {
+            this.kind = kind;
+            this.username = username;
+            this.snapshot = snapshot;
+        }
+
+        static Change reset(RosterSnapshot snapshot) {
+            return new Change(Kind.RESET, null, snapshot);
+        }
+
+        /* Whether applying this change to the given version of the roster gives snapshot. */
+        boolean follows(long version) {
+            return kind != Kind.RESET && snapshot.version == version + 1;
+        }
+    }
+
+    private final long version;
+    private final String[] usernames; // sorted by ORDER; never modified
+
+
+    private RosterSnapshot(long version, String[] usernames) {
+        this.version = version;
+        this.usernames = usernames;
+    }
+
+    /* Sorts a copy of usernames, which must not repeat any. */
+    static RosterSnapshot of(long version, String... usernames) {
+        String[] sorted = usernames.clone();
+        Arrays.sort(sorted, ORDER);
+        return new RosterSnapshot(version, sorted);
+    }
+
+    long getVersion() { return version; }
+
+    int size() { return usernames.length; }
+
+    String get(int index) { return usernames[index]; }
+
+    /* The username's index, or (-(insertion point) - 1) if it isn't here, as in Arrays. */
+    int indexOf(String username) {
+        return Arrays.binarySearch(usernames, username, ORDER);
+    }
+
+    boolean contains(String username) { return indexOf(username) >= 0; }
+
+    String[] toArray() { return usernames.clone(); }
+
+    /* The next version, with the username added; this one if it's already here. */
+    RosterSnapshot with(String username) {
+        int index = indexOf(username);
+        if (index >= 0) return this;
+        index = -index - 1;
+        String[] added = new String[usernames.length + 1];
+        System.arraycopy(usernames, 0, added, 0, index);
+        added[index] = username;
+        System.arraycopy(usernames, index, added, index + 1, usernames.length - index);
+        return new RosterSnapshot(version + 1, added);
+    }
+
+    /* The next version, with the same usernames. */
+    RosterSnapshot next() {
+        return new RosterSnapshot(version + 1, usernames);
+    }
+
+    /* The next version, without the username; this one if it isn't here. */
+    RosterSnapshot without(String username) {
+        int index = indexOf(username);
+        if (index < 0) return this;
+        String[] removed = new String[usernames.length - 1];
+        System.arraycopy(usernames, 0, removed, 0, index);
+        System.arraycopy(usernames, index + 1, removed, index, removed.length - index);
+        return new RosterSnapshot(version + 1, removed);
+    }
+}
@@ -0,0 +1,42 @@
+package edu.ucla.cs.chronochat;
+
+
+/* Smoothed round-trip time and retransmission timeout, computed as in RFC 6298. */
+class RttEstimator {
+
+    private static final double ALPHA = 0.125, BETA = 0.25;
+    private static final long INITIAL_RTO_MILLIS = 1000,
+                              MIN_RTO_MILLIS = 200,
+                              MAX_RTO_MILLIS = 10000;
+
+    private double smoothedRtt = -1, rttVariation;
+    private long rto = INITIAL_RTO_MILLIS;
+
+
+    void addSample(long rttMillis) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttMillis;
+            rttVariation = rttMillis / 2.0;
+        } else {
+            rttVariation = (1 - BETA) * rttVariation + BETA * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rttMillis;
+        }
+        rto = clamp((long) (smoothedRtt + Math.max(1.0, 4 * rttVariation)));
+    }
+
+    /* Smoothed RTT, or the initial RTO if there haven't been any samples yet. */
+    long getSmoothedRtt() {
+        return (smoothedRtt < 0) ? INITIAL_RTO_MILLIS : (long) smoothedRtt;
+    }
+
+    long getRto() { return rto; }
+
+    /* RTO doubled once per previous attempt, as for a retransmission. */
+    long getBackedOffRto(int attempt) {
+        return clamp(rto << Math.min(attempt, 16));
+    }
+
+    private static long clamp(long rtoMillis) {
+        return Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rtoMillis));
+    }
+}
@@ -0,0 +1,117 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.encoding.ElementListener;
+import net.named_data.jndn.encoding.ElementReader;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.transport.TcpTransport;
+import net.named_data.jndn.transport.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+
+/* Equivalent of jndn's TcpTransport, except that the socket is registered with a Selector so the
+ *   network thread can block until NFD sends us something instead of polling processEvents().
+ *   Also counts the elements (Interests, Data, Nacks) handed to the Face for loop statistics.
+ */
+class SelectableTcpTransport extends Transport {
+
+    private static final int INPUT_BUFFER_SIZE = 8000; // same as jndn's TcpTransport
+
+    private final Selector selector;
+    private final ByteBuffer inputBuffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    private SocketChannel channel;
+    private ElementReader elementReader;
+    private TcpTransport.ConnectionInfo connectionInfo;
+    private boolean isLocal;
+    private int receivedElementCount = 0;
+
+
+    SelectableTcpTransport(Selector selector) {
+        this.selector = selector;
+    }
+
+    @Override
+    public boolean isLocal(Transport.ConnectionInfo connectionInfo) throws IOException {
+        TcpTransport.ConnectionInfo tcpConnectionInfo = (TcpTransport.ConnectionInfo) connectionInfo;
+        if (this.connectionInfo == null ||
+                !this.connectionInfo.getHost().equals(tcpConnectionInfo.getHost())) {
+            isLocal = TcpTransport.getIsLocal(tcpConnectionInfo.getHost());
+            this.connectionInfo = tcpConnectionInfo;
+        }
+        return isLocal;
+    }
+
+    @Override
+    public boolean isAsync() { return false; }
+
+    @Override
+    public void connect(Transport.ConnectionInfo connectionInfo,
+                        final ElementListener elementListener, Runnable onConnected)
+            throws IOException {
+        close();
+        TcpTransport.ConnectionInfo tcpConnectionInfo = (TcpTransport.ConnectionInfo) connectionInfo;
+        channel = SocketChannel.open(new InetSocketAddress(tcpConnectionInfo.getHost(),
+                tcpConnectionInfo.getPort()));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        elementReader = new ElementReader(new ElementListener() {
+            @Override
+            public void onReceivedElement(ByteBuffer element) throws EncodingException {
+                receivedElementCount++;
+                elementListener.onReceivedElement(element);
+            }
+        });
+        if (onConnected != null) onConnected.run();
+    }
+
+    @Override
+    public void send(ByteBuffer data) throws IOException {
+        if (!getIsConnected())
+            throw new IOException("Cannot send because the socket is not open.  Use connect.");
+        int savePosition = data.position();
+        while (data.hasRemaining()) channel.write(data);
+        data.position(savePosition);
+    }
+
+    @Override
+    public void processEvents() throws IOException, EncodingException {
+        if (!getIsConnected()) return;
+        while (true) {
+            inputBuffer.limit(inputBuffer.capacity());
+            inputBuffer.position(0);
+            int bytesRead = channel.read(inputBuffer);
+            if (bytesRead < 0) {
+                // otherwise the selector would keep reporting the closed socket as readable
+                close();
+                throw new IOException("connection closed by NFD");
+            }
+            if (bytesRead == 0) return;
+            inputBuffer.flip();
+            elementReader.onReceivedData(inputBuffer);
+        }
+    }
+
+    @Override
+    public boolean getIsConnected() {
+        return (channel != null && channel.isConnected());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            if (channel.isConnected()) channel.close();
+            channel = null;
+        }
+    }
+
+    int takeReceivedElementCount() {
+        int count = receivedElementCount;
+        receivedElementCount = 0;
+        return count;
+    }
+}
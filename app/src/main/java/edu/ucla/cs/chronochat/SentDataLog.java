@@ -0,0 +1,275 @@
+package edu.ucla.cs.chronochat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/* Append-only log of the data we have published, indexed by (session, seqnum). Records live in
+ *   memory-mapped segment files, so the payloads stay off the Java heap and survive a restart of the
+ *   service; only a small position index is kept in memory. When the log grows past MAX_SEGMENTS,
+ *   the oldest segment is deleted and its seqnums can no longer be served.
+ *
+ *   Record layout: magic (int), payload length (int), session (long), seqnum (long), payload.
+ *   Not thread-safe; the network thread owns it.
+ */
+class SentDataLog {
+
+    private static final String TAG = "SentDataLog";
+    private static final String SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_MAGIC = 0x43484154, // "CHAT"
+                             HEADER_SIZE = 24,
+                             SEGMENT_SIZE = 1024 * 1024,
+                             MAX_SEGMENTS = 16;
+    private static final long NOT_AVAILABLE = -1;
+
+    /* Positions of one session's records, indexed by seqnum - firstSeqNum. A position packs the
+     *   segment number into the upper 32 bits and the record offset into the lower 32 bits.
+     */
+    private static class SessionIndex {
+        long firstSeqNum = -1;
+        long[] positions = new long[16];
+        int count = 0;
+
+        long nextSeqNum() { return (firstSeqNum < 0) ? 0 : firstSeqNum + count; }
+
+        void put(long seqNum, long position) {
+            if (firstSeqNum < 0) firstSeqNum = seqNum;
+            if (seqNum < firstSeqNum) return; // appends are in seqnum order, so never expected
+            while (nextSeqNum() < seqNum) append(NOT_AVAILABLE);
+            if (seqNum < nextSeqNum())
+                positions[(int) (seqNum - firstSeqNum)] = position;
+            else
+                append(position);
+        }
+
+        long get(long seqNum) {
+            if (firstSeqNum < 0 || seqNum < firstSeqNum || seqNum >= nextSeqNum())
+                return NOT_AVAILABLE;
+            return positions[(int) (seqNum - firstSeqNum)];
+        }
+
+        private void append(long position) {
+            if (count == positions.length) positions = Arrays.copyOf(positions, count * 2);
+            positions[count++] = position;
+        }
+
+        boolean dropSegment(int segmentNumber) {
+            boolean anyLeft = false;
+            for (int i = 0; i < count; i++) {
+                if (positions[i] != NOT_AVAILABLE && (int) (positions[i] >>> 32) == segmentNumber)
+                    positions[i] = NOT_AVAILABLE;
+                anyLeft |= (positions[i] != NOT_AVAILABLE);
+            }
+            return anyLeft;
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final HashMap<Long, SessionIndex> sessions = new HashMap<>();
+
+
+    SentDataLog(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("unable to create log directory " + directory);
+        openExistingSegments();
+    }
+
+    boolean hasSession(long session) {
+        return sessions.containsKey(session);
+    }
+
+    /* Stores data under (session, seqNum). Seqnums must be appended in increasing order within a
+     *   session; any skipped seqnums are simply not available.
+     */
+    void append(long session, long seqNum, byte[] data) throws IOException {
+        int recordSize = HEADER_SIZE + data.length;
+        Segment segment = getSegmentWithRoom(recordSize);
+        ByteBuffer buffer = segment.buffer;
+        int offset = buffer.position();
+
+        // write the magic number last so a torn write is seen as the end of the log
+        buffer.putInt(offset + 4, data.length);
+        buffer.putLong(offset + 8, session);
+        buffer.putLong(offset + 16, seqNum);
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + HEADER_SIZE);
+        payload.put(data);
+        buffer.putInt(offset, RECORD_MAGIC);
+        buffer.position(offset + recordSize);
+
+        getOrCreateSessionIndex(session).put(seqNum, ((long) segment.number << 32) | offset);
+    }
+
+    /* Returns a read-only view of the stored payload (no copy is made), or null if the log doesn't
+     *   have it. The view stays valid even after its segment is trimmed from the log.
+     */
+    ByteBuffer get(long session, long seqNum) {
+        SessionIndex index = sessions.get(session);
+        if (index == null) return null;
+        long position = index.get(seqNum);
+        if (position == NOT_AVAILABLE) return null;
+
+        Segment segment = findSegment((int) (position >>> 32));
+        if (segment == null) return null;
+        int offset = (int) position;
+        ByteBuffer record = segment.buffer.duplicate();
+        int length = record.getInt(offset + 4);
+        record.limit(offset + HEADER_SIZE + length);
+        record.position(offset + HEADER_SIZE);
+        return record.slice().asReadOnlyBuffer();
+    }
+
+    void close() {
+        segments.clear();
+        sessions.clear();
+    }
+
+    /* Deletes the logs in parent, other than keep, that haven't been written for maxAgeMillis. */
+    static void deleteStaleLogs(File parent, File keep, long maxAgeMillis) {
+        File[] logs = parent.listFiles();
+        if (logs == null) return;
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        for (File log : logs) {
+            if (log.equals(keep) || !log.isDirectory() || lastModified(log) >= cutoff) continue;
+            Log.d(TAG, "deleting stale log " + log);
+            deleteRecursively(log);
+        }
+    }
+
+    private SessionIndex getOrCreateSessionIndex(long session) {
+        SessionIndex index = sessions.get(session);
+        if (index == null) {
+            index = new SessionIndex();
+            sessions.put(session, index);
+        }
+        return index;
+    }
+
+    private Segment findSegment(int number) {
+        // segment numbers are consecutive, so this is normally a direct lookup
+        if (segments.isEmpty()) return null;
+        int i = number - segments.get(0).number;
+        return (i >= 0 && i < segments.size()) ? segments.get(i) : null;
+    }
+
+    private Segment getSegmentWithRoom(int recordSize) throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.buffer.remaining() >= recordSize) return last;
+
+        int number = (last == null) ? 0 : last.number + 1;
+        File file = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+        Segment segment = new Segment(number, file, map(file, Math.max(SEGMENT_SIZE, recordSize)));
+        segments.add(segment);
+        trimOldSegments();
+        return segment;
+    }
+
+    private void trimOldSegments() {
+        while (segments.size() > MAX_SEGMENTS) {
+            Segment oldest = segments.remove(0);
+            Log.d(TAG, "trimming " + oldest.file);
+            Iterator<Map.Entry<Long, SessionIndex>> it = sessions.entrySet().iterator();
+            while (it.hasNext()) {
+                if (!it.next().getValue().dropSegment(oldest.number)) it.remove();
+            }
+            if (!oldest.file.delete()) Log.e(TAG, "unable to delete " + oldest.file);
+        }
+    }
+
+    private void openExistingSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        ArrayList<Integer> numbers = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "ignoring unexpected file " + file);
+            }
+        }
+        Collections.sort(numbers);
+
+        for (int number : numbers) {
+            File file = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+            if (!segments.isEmpty() && segments.get(segments.size() - 1).number != number - 1) {
+                // a gap means an older segment went missing; only keep the newest run
+                segments.clear();
+                sessions.clear();
+            }
+            Segment segment = new Segment(number, file, map(file, (int) file.length()));
+            segments.add(segment);
+            scan(segment);
+        }
+        Log.d(TAG, "opened " + segments.size() + " segments with " + sessions.size() +
+                " sessions from " + directory);
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.limit() && buffer.getInt(offset) == RECORD_MAGIC) {
+            int length = buffer.getInt(offset + 4);
+            if (length < 0 || offset + HEADER_SIZE + length > buffer.limit()) break;
+            long session = buffer.getLong(offset + 8), seqNum = buffer.getLong(offset + 16);
+            getOrCreateSessionIndex(session).put(seqNum, ((long) segment.number << 32) | offset);
+            offset += HEADER_SIZE + length;
+        }
+        buffer.position(offset);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long lastModified(File directory) {
+        long lastModified = directory.lastModified();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) lastModified = Math.max(lastModified, file.lastModified());
+        }
+        return lastModified;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        if (!file.delete()) Log.e(TAG, "unable to delete " + file);
+    }
+}
@@ -0,0 +1,128 @@
+package edu.ucla.cs.chronochat;
+
+import java.util.ArrayList;
+
+
+/* Timers run by the network loop, which blocks for network events no longer than until the next
+ *   one is due (see getNextDeadline()) and then calls runDue(). Unlike the interests we used to
+ *   express to NFD just to have them time out, a timer costs no packet or PIT entry, and fires on
+ *   time whatever the forwarder does.
+ *
+ *   Timers are kept in a binary heap in which each knows its own index, so cancelling one removes
+ *   it in logarithmic time rather than leaving a dead entry behind. Timers due at the same time
+ *   run in the order they were scheduled.
+ *
+ *   Not thread-safe; the network thread owns it. Times are in milliseconds from any monotonic clock.
+ */
+class TimerQueue {
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /* A scheduled task, which can be cancelled until it runs. */
+    final class Timer {
+        private final Runnable task;
+        private final long due, order;
+        private int index = -1; // in the heap, or -1 once run or cancelled
+
+        private Timer(Runnable task, long due, long order) {
+            this.task = task;
+            this.due = due;
+            this.order = order;
+        }
+
+        long getDue() { return due; }
+
+        boolean isScheduled() { return index >= 0; }
+
+        /* Does nothing if the timer has already run or been cancelled. */
+        void cancel() {
+            if (index >= 0) removeAt(index);
+        }
+    }
+
+    private final ArrayList<Timer> heap = new ArrayList<>();
+    private long scheduledCount = 0;
+
+
+    Timer schedule(Runnable task, long due) {
+        Timer timer = new Timer(task, due, scheduledCount++);
+        timer.index = heap.size();
+        heap.add(timer);
+        siftUp(timer.index);
+        return timer;
+    }
+
+    /* When runDue() should next be called, or NO_DEADLINE if no timer is scheduled. */
+    long getNextDeadline() {
+        return heap.isEmpty() ? NO_DEADLINE : heap.get(0).due;
+    }
+
+    /* Runs the timers due by now, including any they schedule that are due by now too. Returns
+     *   how many ran.
+     */
+    int runDue(long now) {
+        int count = 0;
+        while (!heap.isEmpty() && heap.get(0).due <= now) {
+            Timer timer = heap.get(0);
+            removeAt(0);
+            timer.task.run();
+            count++;
+        }
+        return count;
+    }
+
+    /* Cancels every timer. */
+    void clear() {
+        for (Timer timer : heap) timer.index = -1;
+        heap.clear();
+    }
+
+    int size() { return heap.size(); }
+
+    private void removeAt(int index) {
+        heap.get(index).index = -1;
+        Timer last = heap.remove(heap.size() - 1);
+        if (index == heap.size()) return; // it was the last one
+        heap.set(index, last);
+        last.index = index;
+        siftDown(index);
+        siftUp(last.index);
+    }
+
+    private void siftUp(int index) {
+        Timer timer = heap.get(index);
+        while (index > 0) {
+            int parentIndex = (index - 1) / 2;
+            Timer parent = heap.get(parentIndex);
+            if (!runsBefore(timer, parent)) break;
+            place(parent, index);
+            index = parentIndex;
+        }
+        place(timer, index);
+    }
+
+    private void siftDown(int index) {
+        Timer timer = heap.get(index);
+        int size = heap.size();
+        while (true) {
+            int childIndex = 2 * index + 1;
+            if (childIndex >= size) break;
+            if (childIndex + 1 < size && runsBefore(heap.get(childIndex + 1), heap.get(childIndex)))
+                childIndex++;
+            Timer child = heap.get(childIndex);
+            if (!runsBefore(child, timer)) break;
+            place(child, index);
+            index = childIndex;
+        }
+        place(timer, index);
+    }
+
+    private void place(Timer timer, int index) {
+        heap.set(index, timer);
+        timer.index = index;
+    }
+
+    private static boolean runsBefore(Timer a, Timer b) {
+        return a.due < b.due || (a.due == b.due && a.order < b.order);
+    }
+}
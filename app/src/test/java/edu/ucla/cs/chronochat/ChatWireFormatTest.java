@@ -0,0 +1,114 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Name;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage;
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+import static org.junit.Assert.*;
+
+
+public class ChatWireFormatTest {
+
+    private static String dataPrefix(String prefix, String chatroom, String username) {
+        return new Name(prefix).append(chatroom).append(ChatWireFormat.DATA_PREFIX_MARKER)
+                .append(ChatWireFormat.makeUsernameComponent(username))
+                .append("0b4e7c1a-7d4f-4a4e-9d5c-1f2e3d4c5b6a").toUri();
+    }
+
+    @Test
+    public void readsTheUsernameAfterTheMarker() throws Exception {
+        assertEquals("alice",
+                ChatWireFormat.getUsername(dataPrefix("/ndn/edu/ucla", "room", "alice")));
+        assertEquals("a b/c", ChatWireFormat.getUsername(dataPrefix("/ndn", "room", "a b/c")));
+    }
+
+    /* The room name is no help telling the formats apart: here the prefix, the room and the
+     *   user all look alike.
+     */
+    @Test
+    public void olderPrefixesHaveNoUsername() throws Exception {
+        assertNull(ChatWireFormat.getUsername("/ndn/ndnchat/alice"));
+        assertNull(ChatWireFormat.getUsername("/ndn/ndnchat/0b4e7c1a-7d4f-4a4e-9d5c"));
+        assertNull(ChatWireFormat.getUsername("/ndnchat/ndnchat/ndnchat"));
+        assertNull(ChatWireFormat.getUsername("/a"));
+        assertEquals("ndnchat",
+                ChatWireFormat.getUsername(dataPrefix("/ndn", "ndnchat", "ndnchat")));
+    }
+
+    @Test
+    public void readsTheDataPrefixVersion() throws Exception {
+        assertEquals(ChatWireFormat.DATA_PREFIX_VERSION, ChatWireFormat.getDataPrefixVersion(
+                new Name(dataPrefix("/ndn", "room", "alice"))));
+        assertEquals(1, ChatWireFormat.getDataPrefixVersion(new Name("/ndn/room/abc")));
+    }
+
+    @Test
+    public void compactMessagesRoundTrip() throws Exception {
+        long session = 1500000000;
+        ChronoChatMessage message = new ChronoChatMessage("alice", "room", ChatMessageType.CHAT,
+                "hi", (int) session + 42);
+        byte[] payload = ChatWireFormat.encodeCompact(message, session);
+        assertTrue(ChatWireFormat.isCompact(payload));
+        assertFalse(ChatWireFormat.isCompact(ChatWireFormat.encodeFull(message)));
+
+        ChronoChatMessage decoded = ChatWireFormat.decodeCompact(payload, "alice", "room", session);
+        assertEquals(message.toProto(), decoded.toProto());
+    }
+
+    @Test
+    public void olderVersionsGetTheChatMessagesMerged() throws Exception {
+        long session = 1500000000;
+        List<byte[]> messages = Arrays.asList(
+                encode(ChatMessageType.HELLO, "", session + 1, session),
+                encode(ChatMessageType.CHAT, "one", session + 2, session),
+                ChatWireFormat.encodeFull(new ChronoChatMessage("alice", "room",
+                        ChatMessageType.CHAT, "two", (int) session + 3)),
+                encode(ChatMessageType.CHAT, "three", session + 4, session));
+
+        ChatMessage merged = ChatMessage.parseFrom(
+                ChatWireFormat.encodeForOlderVersions(messages, "alice", "room", session));
+        assertEquals(ChatMessageType.CHAT, merged.getType());
+        assertEquals("one\ntwo\nthree", merged.getData());
+        assertEquals(session + 2, merged.getTimestamp());
+        assertEquals("alice", merged.getFrom());
+        assertEquals("room", merged.getTo());
+    }
+
+    @Test
+    public void olderVersionsGetTheLastControlMessage() throws Exception {
+        long session = 1500000000;
+        List<byte[]> messages = Arrays.asList(
+                encode(ChatMessageType.HELLO, "", session + 1, session),
+                encode(ChatMessageType.LEAVE, "", session + 2, session));
+        ChatMessage message = ChatMessage.parseFrom(
+                ChatWireFormat.encodeForOlderVersions(messages, "alice", "room", session));
+        assertEquals(ChatMessageType.LEAVE, message.getType());
+
+        // a lone full message goes out as it is
+        byte[] join = ChatWireFormat.encodeFull(new ChronoChatMessage("alice", "room",
+                ChatMessageType.JOIN, "", (int) session));
+        assertArrayEquals(join, ChatWireFormat.encodeForOlderVersions(
+                Collections.singletonList(join), "alice", "room", session));
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void olderVersionsGetNothingForUnreadableMessages() throws Exception {
+        ChatWireFormat.encodeForOlderVersions(
+                Collections.singletonList(new byte[] { 0x01, (byte) 0xff }), "a", "room", 0);
+    }
+
+    private static byte[] encode(ChatMessageType type, String text, long timestamp,
+                                 long session) {
+        return ChatWireFormat.encodeCompact(
+                new ChronoChatMessage("alice", "room", type, text, (int) timestamp), session);
+    }
+}
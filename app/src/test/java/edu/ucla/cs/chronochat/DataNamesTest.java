@@ -0,0 +1,79 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.Name;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DataNamesTest {
+
+    private static final String DATA_PREFIX = "/ndn/room/%FD%02/alice/abc";
+
+    private Name dataPrefix;
+    private DataNames.Request request;
+
+    @Before
+    public void setUp() {
+        dataPrefix = new Name(DATA_PREFIX);
+        request = new DataNames.Request();
+    }
+
+    @Test
+    public void readsPayloadNames() throws Exception {
+        Name sessionName = DataNames.getSessionName(DATA_PREFIX, 1500000000, true);
+        Interest interest = DataNames.makeInterest(sessionName, 42, 1000);
+        assertEquals(new Name(DATA_PREFIX).append(DataNames.PAYLOAD_MARKER)
+                .append("1500000000").append("42"), interest.getName());
+        assertEquals(1000, (long) interest.getInterestLifetimeMilliseconds());
+
+        assertTrue(DataNames.parse(dataPrefix, interest.getName(), request));
+        assertTrue(request.payload);
+        assertEquals(1500000000, request.session);
+        assertEquals(42, request.seqNum);
+        assertEquals(PayloadSegments.NO_SEGMENT, request.segment);
+
+        assertTrue(DataNames.parse(dataPrefix,
+                new Name(interest.getName()).appendSegment(3), request));
+        assertTrue(request.payload);
+        assertEquals(3, request.segment);
+    }
+
+    @Test
+    public void readsTheNamesOlderVersionsAskFor() throws Exception {
+        Name sessionName = DataNames.getSessionName(DATA_PREFIX, 1500000000, false);
+        Name name = DataNames.makeInterest(sessionName, 7, 1000).getName();
+        assertEquals(new Name(DATA_PREFIX).append("1500000000").append("7"), name);
+
+        assertTrue(DataNames.parse(dataPrefix, name, request));
+        assertFalse(request.payload);
+        assertEquals(7, request.seqNum);
+        assertEquals(PayloadSegments.NO_SEGMENT, request.segment);
+        // nothing served under these names is segmented
+        assertFalse(DataNames.parse(dataPrefix, new Name(name).appendSegment(0), request));
+    }
+
+    /* An interest an older version expresses can't reach a payload even by prefix. */
+    @Test
+    public void payloadNamesAreNotUnderTheOlderNames() throws Exception {
+        Name older = DataNames.getSessionName(DATA_PREFIX, 1500000000, false),
+             payloads = DataNames.getSessionName(DATA_PREFIX, 1500000000, true);
+        assertFalse(older.isPrefixOf(payloads));
+        assertFalse(payloads.isPrefixOf(older));
+    }
+
+    @Test
+    public void rejectsOtherNames() throws Exception {
+        String payloads = DATA_PREFIX + "/%FD%02";
+        assertFalse(DataNames.parse(dataPrefix, new Name(DATA_PREFIX + "/1500000000"), request));
+        assertFalse(DataNames.parse(dataPrefix, new Name(payloads + "/1500000000"), request));
+        assertFalse(DataNames.parse(dataPrefix, new Name(payloads + "/1500000000/042"), request));
+        assertFalse(DataNames.parse(dataPrefix, new Name(payloads + "/x/42"), request));
+        assertFalse(DataNames.parse(dataPrefix, new Name(payloads + "/1500000000/42/x"), request));
+        assertFalse(DataNames.parse(dataPrefix, new Name(DATA_PREFIX + "/%FD%03/1/2"), request));
+        assertFalse(DataNames.parse(dataPrefix, new Name(DATA_PREFIX + "/1/2/3/4"), request));
+    }
+}
@@ -0,0 +1,138 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Data;
+import net.named_data.jndn.Name;
+import net.named_data.jndn.util.Blob;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+public class DataResponderTest {
+
+    private static final String DATA_PREFIX = "/ndn/room/%FD%02/alice/abc";
+    private static final long SESSION = 1500000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SentDataLog sentData;
+    private EncodedDataCache cache;
+    private DataResponder responder;
+    private byte[] olderPeersMessage = { 7, 7, 7 };
+    private int olderPeersEncodings = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        sentData = new SentDataLog(folder.newFolder());
+        cache = new EncodedDataCache(1 << 20);
+        responder = new DataResponder(new Name(DATA_PREFIX), cache,
+                new DataResponder.OlderPeersEncoder() {
+                    @Override
+                    public byte[] encode(long session, byte[] payload) {
+                        assertEquals(SESSION, session);
+                        olderPeersEncodings++;
+                        return olderPeersMessage;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        sentData.close();
+    }
+
+    @Test
+    public void servesPayloadsFromTheLogThenTheCache() throws Exception {
+        byte[] payload = { 1, 2, 3 };
+        sentData.append(SESSION, 0, payload);
+        Name name = payloadName(0);
+
+        Blob encoding = responder.respond(name, sentData);
+        Data data = decode(encoding);
+        assertEquals(name, data.getName());
+        assertArrayEquals(payload, data.getContent().getImmutableArray());
+        assertSame(encoding, responder.respond(name, sentData));
+        // there is only the one segment, and it isn't named
+        assertNull(responder.respond(new Name(name).appendSegment(0), sentData));
+        assertNull(responder.respond(payloadName(1), sentData));
+        assertEquals(0, olderPeersEncodings);
+    }
+
+    @Test
+    public void servesLargePayloadsInSegments() throws Exception {
+        byte[] payload = new byte[PayloadSegments.SEGMENT_SIZE * 2 + 10];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        sentData.append(SESSION, 0, payload);
+        Name name = payloadName(0);
+
+        Data first = decode(responder.respond(name, sentData));
+        assertEquals(new Name(name).appendSegment(0), first.getName());
+        assertEquals(2, first.getMetaInfo().getFinalBlockId().toSegment());
+        assertArrayEquals(Arrays.copyOf(payload, PayloadSegments.SEGMENT_SIZE),
+                first.getContent().getImmutableArray());
+        Data last = decode(responder.respond(new Name(name).appendSegment(2), sentData));
+        assertArrayEquals(Arrays.copyOfRange(payload, 2 * PayloadSegments.SEGMENT_SIZE,
+                payload.length), last.getContent().getImmutableArray());
+        assertNull(responder.respond(new Name(name).appendSegment(3), sentData));
+    }
+
+    @Test
+    public void servesOlderVersionsWhatTheyCanRead() throws Exception {
+        sentData.append(SESSION, 0, new byte[] { 1, 2, 3 });
+        Name name = DataNames.makeInterest(
+                DataNames.getSessionName(DATA_PREFIX, SESSION, false), 0, 1000).getName();
+
+        Blob encoding = responder.respond(name, sentData);
+        Data data = decode(encoding);
+        assertEquals(name, data.getName());
+        assertArrayEquals(olderPeersMessage, data.getContent().getImmutableArray());
+        // cached apart from the payload served under the other name
+        assertSame(encoding, responder.respond(name, sentData));
+        assertEquals(1, olderPeersEncodings);
+        assertArrayEquals(new byte[] { 1, 2, 3 },
+                decode(responder.respond(payloadName(0), sentData)).getContent()
+                        .getImmutableArray());
+    }
+
+    /* They would only fetch the first packet of a segmented message. */
+    @Test
+    public void servesOlderVersionsNothingTheyCantRead() throws Exception {
+        sentData.append(SESSION, 0, new byte[] { 1 });
+        sentData.append(SESSION, 1, new byte[] { 2 });
+        Name sessionName = DataNames.getSessionName(DATA_PREFIX, SESSION, false);
+        olderPeersMessage = null;
+        assertNull(responder.respond(DataNames.makeInterest(sessionName, 0, 1000).getName(),
+                sentData));
+        olderPeersMessage = new byte[PayloadSegments.SEGMENT_SIZE + 1];
+        assertNull(responder.respond(DataNames.makeInterest(sessionName, 1, 1000).getName(),
+                sentData));
+    }
+
+    @Test
+    public void ignoresOtherNames() throws Exception {
+        sentData.append(SESSION, 0, new byte[] { 1 });
+        assertNull(responder.respond(new Name(DATA_PREFIX + "/%FD%02/x/0"), sentData));
+        assertNull(responder.respond(new Name(DATA_PREFIX + "/" + SESSION + "/0/%00%00"),
+                sentData));
+    }
+
+    private Name payloadName(long seqNum) {
+        return DataNames.makeInterest(DataNames.getSessionName(DATA_PREFIX, SESSION, true),
+                seqNum, 1000).getName();
+    }
+
+    private static Data decode(Blob encoding) throws Exception {
+        assertNotNull(encoding);
+        Data data = new Data();
+        data.wireDecode(encoding);
+        return data;
+    }
+}
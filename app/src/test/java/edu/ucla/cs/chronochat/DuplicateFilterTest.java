@@ -0,0 +1,68 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+public class DuplicateFilterTest {
+
+    private static final long ALICE = DuplicateFilter.hashProducer("/ndn/chat/alice/abc/1"),
+                              BOB = DuplicateFilter.hashProducer("/ndn/chat/bob/def/1");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() throws Exception {
+        new DuplicateFilter(12);
+    }
+
+    @Test
+    public void recordsEachPairOnce() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(16);
+        assertTrue(filter.add(ALICE, 0));
+        assertFalse(filter.add(ALICE, 0));
+        assertTrue(filter.add(ALICE, 1));
+        assertTrue(filter.add(BOB, 0));
+        assertFalse(filter.add(BOB, 0));
+        assertEquals("3/16 pairs", filter.toString());
+    }
+
+    @Test
+    public void evictsTheOldestPairOnceFull() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(4);
+        for (long seqNum = 0; seqNum < 4; seqNum++) assertTrue(filter.add(ALICE, seqNum));
+        assertTrue(filter.add(ALICE, 4));
+        assertEquals("4/4 pairs", filter.toString());
+        for (long seqNum = 1; seqNum <= 4; seqNum++) assertFalse(filter.add(ALICE, seqNum));
+        // 0 was forgotten; adding it again evicts 1
+        assertTrue(filter.add(ALICE, 0));
+        assertTrue(filter.add(ALICE, 1));
+        assertFalse(filter.add(ALICE, 0));
+    }
+
+    /* With a small table, probe runs often collide and wrap around its end, so every eviction
+     *   exercises the backward shift; the filter must still agree exactly with the last
+     *   capacity pairs added.
+     */
+    @Test
+    public void remembersExactlyTheLastPairsThroughManyEvictions() throws Exception {
+        for (int capacity : new int[] { 1, 4, 64 }) {
+            DuplicateFilter filter = new DuplicateFilter(capacity);
+            ArrayDeque<Long> recent = new ArrayDeque<>();
+            Random random = new Random(capacity);
+            for (int i = 0; i < 20000; i++) {
+                long seqNum = random.nextInt(3 * capacity);
+                long producerHash = random.nextBoolean() ? ALICE : BOB;
+                long pair = (producerHash == ALICE) ? seqNum : -1 - seqNum;
+                boolean isNew = !recent.contains(pair);
+                assertEquals("capacity " + capacity + ", step " + i, isNew,
+                        filter.add(producerHash, seqNum));
+                if (!isNew) continue;
+                recent.addLast(pair);
+                if (recent.size() > capacity) recent.removeFirst();
+            }
+        }
+    }
+}
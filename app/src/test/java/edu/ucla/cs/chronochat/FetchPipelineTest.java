@@ -0,0 +1,218 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class FetchPipelineTest {
+
+    private static final int MAX_RETRIES = 5;
+
+    /* Records what the pipeline asks for; interests stay in flight until the test answers them. */
+    private static class RecordingListener implements FetchPipeline.Listener {
+        final ArrayList<long[]> expressed = new ArrayList<>(); // {producer ID, seqnum, lifetime}
+        final ArrayList<Long> abandoned = new ArrayList<>();
+        FetchPipeline cancelOnAbandon; // cancels the producer on its first abandoned seqnum
+
+        @Override
+        public void expressInterest(int producerId, long seqNum, long lifetimeMillis) {
+            expressed.add(new long[] { producerId, seqNum, lifetimeMillis });
+        }
+
+        @Override
+        public void onFetchAbandoned(int producerId, long seqNum) {
+            abandoned.add(seqNum);
+            if (cancelOnAbandon != null) cancelOnAbandon.cancel(producerId);
+        }
+
+        List<long[]> takeExpressed() {
+            List<long[]> taken = new ArrayList<>(expressed);
+            expressed.clear();
+            return taken;
+        }
+    }
+
+    private RecordingListener listener;
+    private FetchPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        listener = new RecordingListener();
+        pipeline = new FetchPipeline(listener);
+    }
+
+    @Test
+    public void producerWindowStartsAtFour() throws Exception {
+        pipeline.request(0, 0, 99);
+        assertEquals(4, pipeline.fill(0));
+        assertEquals(0, pipeline.fill(0));
+        assertEquals(4, pipeline.getInFlight());
+        assertEquals(96, pipeline.getPendingCount());
+    }
+
+    @Test
+    public void globalWindowStartsAtSixteenAndIsSharedRoundRobin() throws Exception {
+        for (int producer = 0; producer < 8; producer++) pipeline.request(producer, 0, 99);
+        assertEquals(16, pipeline.fill(0));
+        int[] perProducer = new int[8];
+        for (long[] interest : listener.takeExpressed()) perProducer[(int) interest[0]]++;
+        for (int count : perProducer) assertEquals(2, count);
+    }
+
+    @Test
+    public void producerWindowGrowsToSixtyFour() throws Exception {
+        pipeline.request(0, 0, 100000);
+        int maxInFlight = answerRounds(20);
+        assertEquals(64, maxInFlight);
+    }
+
+    @Test
+    public void globalWindowGrowsToTwoHundredFiftySix() throws Exception {
+        for (int producer = 0; producer < 8; producer++) pipeline.request(producer, 0, 100000);
+        int maxInFlight = answerRounds(40);
+        assertEquals(256, maxInFlight);
+    }
+
+    @Test
+    public void lossesWithinOneRttHalveTheWindowOnce() throws Exception {
+        pipeline.request(0, 0, 99);
+        assertEquals(4, pipeline.fill(0));
+        // no RTT sample yet, so losses within the initial RTO (1 s) are one loss event: 4 -> 2
+        for (long seqNum = 0; seqNum < 4; seqNum++) pipeline.onTimeout(0, seqNum, 10);
+        assertEquals(2, pipeline.fill(10));
+        // a loss a full RTT later halves it again: 2 -> 1
+        for (long[] interest : listener.takeExpressed()) {
+            if (interest[1] < 2) pipeline.onTimeout(0, interest[1], 2000);
+        }
+        listener.takeExpressed();
+        assertEquals(1, pipeline.fill(2000));
+    }
+
+    @Test
+    public void timeoutsDoubleTheLifetimeUntilTheRetryCap() throws Exception {
+        pipeline.request(0, 0, 0);
+        long now = 0;
+        long[] lifetimes = new long[MAX_RETRIES + 1];
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            assertEquals(1, pipeline.fill(now));
+            lifetimes[attempt] = listener.takeExpressed().get(0)[2];
+            now += lifetimes[attempt];
+            pipeline.onTimeout(0, 0, now);
+        }
+        // initial RTO of 1 s, doubled per retry and capped at 10 s
+        assertArrayEquals(new long[] { 1000, 2000, 4000, 8000, 10000, 10000 }, lifetimes);
+        assertEquals(Arrays.asList(0L), listener.abandoned);
+        assertEquals(MAX_RETRIES, pipeline.getRetransmissionCount());
+        assertEquals(1, pipeline.getAbandonedCount());
+        assertEquals(0, pipeline.getInFlight());
+        assertEquals(0, pipeline.fill(now));
+    }
+
+    @Test
+    public void nackedSeqNumsBackOffWithJitter() throws Exception {
+        pipeline.request(0, 0, 0);
+        long now = 0;
+        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
+            assertEquals(1, pipeline.fill(now));
+            listener.takeExpressed();
+            pipeline.onNack(0, 0, now);
+            long backoff = 250L << (attempt - 1),
+                 due = pipeline.getNextDeadline(now);
+            assertTrue("attempt " + attempt, due - now >= backoff / 2 && due - now <= backoff);
+            assertEquals(0, pipeline.fill(due - 1));
+            now = due;
+        }
+        assertEquals(1, pipeline.fill(now));
+        pipeline.onNack(0, 0, now);
+        assertEquals(Arrays.asList(0L), listener.abandoned);
+        assertEquals(FetchPipeline.NO_DEADLINE, pipeline.getNextDeadline(now));
+    }
+
+    @Test
+    public void abandoningTakesEverythingNotInFlight() throws Exception {
+        setUpFailingProducer();
+        failUntilAbandoned();
+        // the Nacked seqnum and those never expressed go too; those in flight get their own chance
+        assertEquals(Arrays.asList(0L, 4L, 9L), listener.abandoned);
+        assertEquals(2, pipeline.getInFlight());
+        assertEquals(0, pipeline.getPendingCount());
+        pipeline.onData(0, 3, 1000);
+        pipeline.onData(0, 8, 1000);
+        assertEquals(0, pipeline.getInFlight());
+        assertEquals(3, pipeline.getAbandonedCount());
+    }
+
+    /* As the segment pipeline's listener does when a segment is given up on. */
+    @Test
+    public void listenerMayCancelTheProducerWhileItIsAbandoned() throws Exception {
+        listener.cancelOnAbandon = pipeline;
+        pipeline.request(1, 0, 99);
+        setUpFailingProducer();
+        failUntilAbandoned();
+
+        assertEquals(Arrays.asList(0L, 4L, 9L), listener.abandoned);
+        assertEquals(3, pipeline.getAbandonedCount());
+        // what producer 0 still had in flight was cancelled; producer 1 carries on
+        assertEquals(4, pipeline.getInFlight());
+        pipeline.onData(0, 3, 1000);
+        pipeline.onData(0, 8, 1000);
+        assertEquals(4, pipeline.getInFlight());
+        for (long seqNum = 0; seqNum < 4; seqNum++) pipeline.onData(1, seqNum, 1000);
+        assertEquals(8, pipeline.fill(1000));
+        for (long[] interest : listener.takeExpressed()) assertEquals(1, interest[0]);
+        assertEquals(96 - 8, pipeline.getPendingCount());
+    }
+
+    /* Leaves producer 0 with seqnums 0, 3 and 8 in flight, 4 waiting for its backoff after a
+     *   Nack, and 9 not yet requested, with a window that fits a retry of 0.
+     */
+    private void setUpFailingProducer() throws Exception {
+        pipeline.request(0, 0, 9);
+        pipeline.fill(0);                       // 0-3, and producer 1's first
+        pipeline.onData(0, 1, 900);             // RTT of 900 ms; window 4 -> 6
+        pipeline.onData(0, 2, 900);
+        pipeline.fill(900);                     // 4-7
+        pipeline.onNack(0, 4, 900);             // window 6 -> 3
+        for (long seqNum = 5; seqNum <= 7; seqNum++) pipeline.onData(0, seqNum, 950);
+        listener.takeExpressed();
+    }
+
+    /* Times out seqnum 0 of producer 0, retrying it each time, until it is given up on. The
+     *   timeouts are less than an RTT apart, so they don't shrink the window any further.
+     */
+    private void failUntilAbandoned() throws Exception {
+        long now = 950;
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            pipeline.fill(now);
+            boolean retried = false;
+            for (long[] interest : listener.takeExpressed())
+                retried |= (interest[0] == 0 && interest[1] == 0);
+            assertTrue("attempt " + attempt, attempt == 0 || retried);
+            now++;
+            pipeline.onTimeout(0, 0, now);
+        }
+        assertFalse(listener.abandoned.isEmpty());
+    }
+
+    /* Fills the pipeline and answers everything in flight, rounds times; returns the most
+     *   interests that were ever in flight at once.
+     */
+    private int answerRounds(int rounds) throws Exception {
+        int maxInFlight = 0;
+        long now = 0;
+        for (int round = 0; round < rounds; round++) {
+            pipeline.fill(now);
+            maxInFlight = Math.max(maxInFlight, pipeline.getInFlight());
+            now += 10;
+            for (long[] interest : listener.takeExpressed())
+                pipeline.onData((int) interest[0], interest[1], now);
+        }
+        return maxInFlight;
+    }
+}
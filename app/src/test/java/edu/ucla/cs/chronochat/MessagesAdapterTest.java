@@ -0,0 +1,113 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+import static org.junit.Assert.*;
+
+
+public class MessagesAdapterTest {
+
+    @Test
+    public void mergesIntoBlocksOfAdjacentRows() throws Exception {
+        ArrayList<ChronoChatMessage> messages = messages("a", 10, "b", 20, "c", 30, "d", 40);
+        List<ChronoChatMessage> run = messages("x", 5, "y", 25, "z", 26, "w", 50);
+        int[] blockStarts = new int[run.size()], blockSizes = new int[run.size()];
+
+        int blockCount = MessagesAdapter.merge(messages, run, blockStarts, blockSizes);
+
+        assertEquals(Arrays.asList("x", "a", "b", "y", "z", "c", "d", "w"), texts(messages));
+        // last block first
+        assertEquals(3, blockCount);
+        assertArrayEquals(new int[] { 7, 3, 0 }, Arrays.copyOf(blockStarts, blockCount));
+        assertArrayEquals(new int[] { 1, 2, 1 }, Arrays.copyOf(blockSizes, blockCount));
+    }
+
+    @Test
+    public void newMessagesGoAfterThoseWithTheSameTimestamp() throws Exception {
+        ArrayList<ChronoChatMessage> messages = messages("a", 10, "b", 20, "c", 20, "d", 30);
+        List<ChronoChatMessage> run = messages("x", 10, "y", 20, "z", 20);
+        int[] blockStarts = new int[run.size()], blockSizes = new int[run.size()];
+
+        int blockCount = MessagesAdapter.merge(messages, run, blockStarts, blockSizes);
+
+        assertEquals(Arrays.asList("a", "x", "b", "c", "y", "z", "d"), texts(messages));
+        assertEquals(2, blockCount);
+        assertArrayEquals(new int[] { 4, 1 }, Arrays.copyOf(blockStarts, blockCount));
+        assertArrayEquals(new int[] { 2, 1 }, Arrays.copyOf(blockSizes, blockCount));
+    }
+
+    @Test
+    public void mergesIntoAnEmptyWindow() throws Exception {
+        ArrayList<ChronoChatMessage> messages = new ArrayList<>();
+        List<ChronoChatMessage> run = messages("x", 1, "y", 2);
+        int[] blockStarts = new int[2], blockSizes = new int[2];
+        assertEquals(1, MessagesAdapter.merge(messages, run, blockStarts, blockSizes));
+        assertEquals(Arrays.asList("x", "y"), texts(messages));
+        assertEquals(0, blockStarts[0]);
+        assertEquals(2, blockSizes[0]);
+    }
+
+    /* Reporting the blocks first block first must rebuild the new message positions. */
+    @Test
+    public void matchesAStableSortAndReportsEveryNewRow() throws Exception {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            ArrayList<ChronoChatMessage> messages = randomRun(random, "old", random.nextInt(30));
+            List<ChronoChatMessage> run = randomRun(random, "new", 1 + random.nextInt(30));
+            ArrayList<ChronoChatMessage> expected = new ArrayList<>(messages);
+            for (ChronoChatMessage message : run) {
+                int position = 0;
+                while (position < expected.size() &&
+                        expected.get(position).getTimestamp() <= message.getTimestamp())
+                    position++;
+                expected.add(position, message);
+            }
+            int[] blockStarts = new int[run.size()], blockSizes = new int[run.size()];
+
+            int blockCount = MessagesAdapter.merge(messages, run, blockStarts, blockSizes);
+
+            assertEquals(expected, messages);
+            List<ChronoChatMessage> reported = new ArrayList<>();
+            for (int i = blockCount - 1; i >= 0; i--) {
+                if (i < blockCount - 1)
+                    assertTrue(blockStarts[i] > blockStarts[i + 1] + blockSizes[i + 1]);
+                reported.addAll(messages.subList(blockStarts[i], blockStarts[i] + blockSizes[i]));
+            }
+            assertEquals(run, reported);
+        }
+    }
+
+    private static ArrayList<ChronoChatMessage> randomRun(Random random, String text, int size) {
+        ArrayList<ChronoChatMessage> run = new ArrayList<>();
+        int timestamp = random.nextInt(5);
+        for (int i = 0; i < size; i++) {
+            run.add(new ChronoChatMessage("bob", "room", ChatMessageType.CHAT, text + i,
+                    timestamp));
+            timestamp += random.nextInt(3);
+        }
+        return run;
+    }
+
+    /* Messages from pairs of text and timestamp. */
+    private static ArrayList<ChronoChatMessage> messages(Object... textsAndTimestamps) {
+        ArrayList<ChronoChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < textsAndTimestamps.length; i += 2) {
+            messages.add(new ChronoChatMessage("bob", "room", ChatMessageType.CHAT,
+                    (String) textsAndTimestamps[i], (Integer) textsAndTimestamps[i + 1]));
+        }
+        return messages;
+    }
+
+    private static List<String> texts(List<ChronoChatMessage> messages) {
+        List<String> texts = new ArrayList<>();
+        for (ChronoChatMessage message : messages) texts.add(message.getData());
+        return texts;
+    }
+}
@@ -0,0 +1,144 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Name;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static edu.ucla.cs.chronochat.PayloadSegments.MAX_PAYLOAD_SIZE;
+import static edu.ucla.cs.chronochat.PayloadSegments.MAX_SEGMENTS;
+import static edu.ucla.cs.chronochat.PayloadSegments.NO_SEGMENT;
+import static edu.ucla.cs.chronochat.PayloadSegments.SEGMENT_SIZE;
+import static org.junit.Assert.*;
+
+
+public class PayloadSegmentsTest {
+
+    @Test
+    public void countsSegments() throws Exception {
+        assertEquals(1, PayloadSegments.getSegmentCount(0));
+        assertEquals(1, PayloadSegments.getSegmentCount(1));
+        assertEquals(1, PayloadSegments.getSegmentCount(SEGMENT_SIZE));
+        assertEquals(2, PayloadSegments.getSegmentCount(SEGMENT_SIZE + 1));
+        assertEquals(2, PayloadSegments.getSegmentCount(2 * SEGMENT_SIZE));
+        assertEquals(MAX_SEGMENTS, PayloadSegments.getSegmentCount(MAX_PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void payloadOfExactlyOneSegment() throws Exception {
+        byte[] payload = randomBytes(SEGMENT_SIZE);
+        List<ByteBuffer> segments = split(payload);
+        assertEquals(1, segments.size());
+        assertEquals(SEGMENT_SIZE, segments.get(0).remaining());
+        PayloadSegments.Reassembly reassembly = new PayloadSegments.Reassembly(0, segments.get(0));
+        assertTrue(reassembly.isComplete());
+        assertArrayEquals(payload, reassembly.getPayload());
+    }
+
+    @Test
+    public void payloadOneByteOver() throws Exception {
+        byte[] payload = randomBytes(SEGMENT_SIZE + 1);
+        List<ByteBuffer> segments = split(payload);
+        assertEquals(2, segments.size());
+        assertEquals(1, segments.get(1).remaining());
+
+        PayloadSegments.Reassembly reassembly = new PayloadSegments.Reassembly(1, segments.get(0));
+        assertFalse(reassembly.isComplete());
+        try {
+            reassembly.getPayload();
+            fail("got an incomplete payload");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        reassembly.add(1, segments.get(1));
+        assertTrue(reassembly.isComplete());
+        assertArrayEquals(payload, reassembly.getPayload());
+    }
+
+    @Test
+    public void payloadOfMaxSegmentsInAnyOrder() throws Exception {
+        byte[] payload = randomBytes(MAX_PAYLOAD_SIZE);
+        List<ByteBuffer> segments = split(payload);
+        assertEquals(MAX_SEGMENTS, segments.size());
+
+        PayloadSegments.Reassembly reassembly =
+                new PayloadSegments.Reassembly(MAX_SEGMENTS - 1, segments.get(0));
+        List<Integer> order = new ArrayList<>();
+        for (int segment = 1; segment < MAX_SEGMENTS; segment++) order.add(segment);
+        Collections.shuffle(order, new Random(1));
+        for (int segment : order) {
+            reassembly.add(segment, segments.get(segment));
+            reassembly.add(segment, segments.get(segment)); // duplicates are ignored
+        }
+        assertTrue(reassembly.isComplete());
+        assertArrayEquals(payload, reassembly.getPayload());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMoreThanMaxSegments() throws Exception {
+        new PayloadSegments.Reassembly(MAX_SEGMENTS, ByteBuffer.wrap(randomBytes(SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void rejectsSegmentsOfTheWrongSize() throws Exception {
+        List<ByteBuffer> segments = split(randomBytes(3 * SEGMENT_SIZE - 10));
+        PayloadSegments.Reassembly reassembly = new PayloadSegments.Reassembly(2, segments.get(0));
+        assertAddFails(reassembly, 1, ByteBuffer.wrap(randomBytes(SEGMENT_SIZE - 1)));
+        assertAddFails(reassembly, 2, ByteBuffer.wrap(randomBytes(SEGMENT_SIZE + 1)));
+        assertAddFails(reassembly, 3, segments.get(2));
+        assertAddFails(reassembly, -1, segments.get(2));
+        reassembly.add(1, segments.get(1));
+        reassembly.add(2, segments.get(2));
+        assertTrue(reassembly.isComplete());
+    }
+
+    @Test
+    public void segmentsAreViewsOfThePayload() throws Exception {
+        byte[] bytes = randomBytes(SEGMENT_SIZE + 10);
+        ByteBuffer payload = ByteBuffer.wrap(bytes, 5, SEGMENT_SIZE + 5);
+        ByteBuffer last = PayloadSegments.getSegment(payload, 1);
+        assertEquals(5, last.remaining());
+        assertEquals(bytes[5 + SEGMENT_SIZE], last.get(0));
+        assertEquals(5, payload.position());
+    }
+
+    @Test
+    public void readsSegmentComponents() throws Exception {
+        assertEquals(5, PayloadSegments.toSegment(Name.Component.fromSegment(5)));
+        assertEquals(MAX_SEGMENTS - 1,
+                PayloadSegments.toSegment(Name.Component.fromSegment(MAX_SEGMENTS - 1)));
+        assertEquals(NO_SEGMENT,
+                PayloadSegments.toSegment(Name.Component.fromSegment(MAX_SEGMENTS)));
+        assertEquals(NO_SEGMENT, PayloadSegments.toSegment(new Name.Component("5")));
+        assertEquals(NO_SEGMENT, PayloadSegments.toSegment(null));
+    }
+
+    private static List<ByteBuffer> split(byte[] payload) {
+        List<ByteBuffer> segments = new ArrayList<>();
+        for (int segment = 0; segment < PayloadSegments.getSegmentCount(payload.length); segment++)
+            segments.add(PayloadSegments.getSegment(ByteBuffer.wrap(payload), segment));
+        return segments;
+    }
+
+    private static void assertAddFails(PayloadSegments.Reassembly reassembly, long segment,
+                                       ByteBuffer content) {
+        try {
+            reassembly.add(segment, content);
+            fail("added segment " + segment + " of " + content.remaining() + " bytes");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,187 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ProducerTableTest {
+
+    private static final long MAX_TRACKED_SEQNUMS = 4096;
+
+    private ProducerTable table;
+    private ProducerTable.Session session;
+
+    @Before
+    public void setUp() {
+        table = new ProducerTable();
+        session = table.getOrCreate("/ndn/chat/alice/abc", 1);
+    }
+
+    @Test
+    public void announcedSeqNumsAreOutstanding() throws Exception {
+        assertTrue(table.announce(session, 9));
+        assertFalse(table.announce(session, 9));
+        assertFalse(table.announce(session, 4));
+        for (long seqNum = 0; seqNum <= 9; seqNum++) assertTrue(session.isOutstanding(seqNum));
+        assertEquals(9, session.getHighestKnown());
+        assertEquals(0, session.getLowWaterMark());
+    }
+
+    @Test
+    public void lowWaterMarkMovesPastWhatHasArrived() throws Exception {
+        table.announce(session, 9);
+        for (long seqNum = 0; seqNum < 4; seqNum++) assertTrue(table.markReceived(session, seqNum));
+        assertEquals(4, session.getLowWaterMark());
+        // out of order: held above the mark until the seqnum before it arrives
+        assertTrue(table.markReceived(session, 5));
+        assertEquals(4, session.getLowWaterMark());
+        assertTrue(table.markReceived(session, 4));
+        assertEquals(6, session.getLowWaterMark());
+        // duplicates, above and below the mark
+        assertFalse(table.markReceived(session, 5));
+        assertFalse(table.markReceived(session, 2));
+        assertEquals(6, session.getReceivedCount());
+        assertEquals(0, session.getGapCount());
+    }
+
+    @Test
+    public void windowMovesForwardAcrossWords() throws Exception {
+        table.announce(session, 199);
+        for (long seqNum = 0; seqNum < 150; seqNum++) table.markReceived(session, seqNum);
+        assertEquals(150, session.getLowWaterMark());
+        table.announce(session, 299);
+        for (long seqNum = 150; seqNum < 300; seqNum++) {
+            assertTrue(session.isOutstanding(seqNum));
+            table.markReceived(session, seqNum);
+        }
+        assertEquals(300, session.getLowWaterMark());
+        assertTrue(session.isReceived(0));
+        assertTrue(session.isReceived(299));
+        assertFalse(session.isReceived(300));
+        assertFalse(table.markReceived(session, 64));
+        assertEquals(300, session.getReceivedCount());
+    }
+
+    @Test
+    public void abandonedSeqNumsAreGaps() throws Exception {
+        table.announce(session, 9);
+        table.markReceived(session, 0);
+        table.markReceived(session, 1);
+        assertTrue(table.markAbandoned(session, 2));
+        assertTrue(table.markAbandoned(session, 3));
+        assertFalse(table.markAbandoned(session, 3));
+        assertFalse(table.markAbandoned(session, 1));
+        table.markReceived(session, 5);
+
+        // the gaps hold the low-water mark back and are counted exactly
+        assertEquals(2, session.getLowWaterMark());
+        assertEquals(2, session.getGapCount());
+        assertEquals(2, session.getAbandonedCount());
+        assertFalse(session.isReceived(2));
+        assertFalse(session.isOutstanding(2));
+        assertTrue(session.isOutstanding(4));
+
+        // data that turns up after all fills its gap
+        assertTrue(table.markReceived(session, 2));
+        assertEquals(3, session.getLowWaterMark());
+        assertEquals(1, session.getGapCount());
+    }
+
+    @Test
+    public void gapsBeyondTheCapAreForgotten() throws Exception {
+        table.announce(session, 9);
+        for (long seqNum = 0; seqNum <= 9; seqNum++) table.markAbandoned(session, seqNum);
+        assertEquals(10, session.getGapCount());
+
+        long newest = MAX_TRACKED_SEQNUMS + 4;
+        table.announce(session, newest);
+        table.markReceived(session, newest);
+        // gaps 0-4 are now more than MAX_TRACKED_SEQNUMS behind the newest seqnum
+        assertEquals(5, session.getLowWaterMark());
+        assertEquals(5, session.getGapCount());
+        assertEquals(10, session.getAbandonedCount());
+        assertTrue(session.isReceived(0));
+    }
+
+    @Test
+    public void outstandingSeqNumsAreNotForgotten() throws Exception {
+        table.announce(session, 9);
+        long newest = 2 * MAX_TRACKED_SEQNUMS;
+        table.announce(session, newest);
+        table.markReceived(session, newest);
+        assertEquals(0, session.getLowWaterMark());
+        assertTrue(session.isOutstanding(0));
+        assertTrue(table.markReceived(session, 0));
+        assertEquals(1, session.getLowWaterMark());
+    }
+
+    @Test
+    public void unannouncedSeqNumsAreLetThrough() throws Exception {
+        assertTrue(table.markReceived(session, 3));
+        assertEquals(-1, session.getHighestKnown());
+        assertEquals(0, session.getReceivedCount());
+    }
+
+    @Test
+    public void skippingSettlesWithoutFetching() throws Exception {
+        table.announce(session, 49);
+        table.skipTo(session, 99);
+        assertEquals(100, session.getLowWaterMark());
+        assertEquals(99, session.getHighestKnown());
+        assertFalse(table.markReceived(session, 50));
+        assertEquals(0, session.getGapCount());
+
+        assertTrue(table.announce(session, 105));
+        assertFalse(session.isOutstanding(99));
+        for (long seqNum = 100; seqNum <= 105; seqNum++) assertTrue(session.isOutstanding(seqNum));
+    }
+
+    @Test
+    public void newSessionStartsOverUnderANewId() throws Exception {
+        table.announce(session, 9);
+        table.markReceived(session, 0);
+
+        ProducerTable.Session reset = table.getOrCreate("/ndn/chat/alice/abc", 2);
+        assertNotSame(session, reset);
+        assertEquals(1, reset.id);
+        assertEquals(-1, reset.getHighestKnown());
+        assertEquals(0, reset.getLowWaterMark());
+        assertTrue(table.announce(reset, 0));
+
+        // the old session keeps its own state and can still be looked up
+        assertSame(session, table.find("/ndn/chat/alice/abc", 1));
+        assertSame(reset, table.find("/ndn/chat/alice/abc", 2));
+        assertSame(reset, table.getOrCreate("/ndn/chat/alice/abc", 2));
+        assertSame(session, table.get(0));
+        assertEquals(2, table.size());
+        assertEquals(1, session.getLowWaterMark());
+        assertEquals("/ndn/chat/alice/abc/2", reset.name);
+    }
+
+    @Test
+    public void syncStatesQueueNewSeqNums() throws Exception {
+        FetchPipeline pipeline = new FetchPipeline(new FetchPipeline.Listener() {
+            @Override
+            public void expressInterest(int producerId, long seqNum, long lifetimeMillis) { }
+
+            @Override
+            public void onFetchAbandoned(int producerId, long seqNum) { }
+        });
+        // the first state for a session isn't news, and what came before it can be skipped
+        assertFalse(table.onSyncState("/ndn/chat/bob/abc", 1, 9, false, pipeline));
+        ProducerTable.Session bob = table.find("/ndn/chat/bob/abc", 1);
+        assertEquals(10, bob.getLowWaterMark());
+        assertEquals(0, pipeline.getPendingCount());
+        assertTrue(table.onSyncState("/ndn/chat/bob/abc", 1, 12, false, pipeline));
+        assertFalse(table.onSyncState("/ndn/chat/bob/abc", 1, 12, false, pipeline));
+        assertEquals(3, pipeline.getPendingCount());
+        for (long seqNum = 10; seqNum <= 12; seqNum++) assertTrue(bob.isOutstanding(seqNum));
+
+        // or fetched
+        assertFalse(table.onSyncState("/ndn/chat/carol/abc", 1, 4, true, pipeline));
+        assertEquals(3 + 5, pipeline.getPendingCount());
+        assertTrue(table.find("/ndn/chat/carol/abc", 1).isOutstanding(0));
+    }
+}
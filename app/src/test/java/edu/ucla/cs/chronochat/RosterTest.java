@@ -0,0 +1,143 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+import static org.junit.Assert.*;
+
+
+public class RosterTest {
+
+    // a tick of 100 ms; the wheel's 32 slots span 3.2 s
+    private static final long TIMEOUT = 1600;
+
+    private Roster roster;
+    private ArrayList<RosterSnapshot.Change> changes;
+
+    @Before
+    public void setUp() {
+        roster = new Roster("me", TIMEOUT, 0);
+        changes = new ArrayList<>();
+        roster.setListener(new RosterSnapshot.Listener() {
+            @Override
+            public void onRosterChanged(RosterSnapshot.Change change) { changes.add(change); }
+        });
+    }
+
+    @Test
+    public void publishesJoinsAndLeaves() throws Exception {
+        roster.update("bob", ChatMessageType.JOIN, 0);
+        roster.update("Alice", ChatMessageType.CHAT, 0);
+        roster.update("bob", ChatMessageType.CHAT, 10);
+        roster.update("bob", ChatMessageType.LEAVE, 20);
+        roster.update("carol", ChatMessageType.LEAVE, 20);
+
+        assertEquals(3, changes.size());
+        assertEquals(RosterSnapshot.Change.Kind.JOINED, changes.get(0).kind);
+        assertEquals("Alice", changes.get(1).username);
+        assertEquals(RosterSnapshot.Change.Kind.LEFT, changes.get(2).kind);
+        assertTrue(changes.get(2).follows(2));
+        assertArrayEquals(new String[] { "Alice", "me" }, roster.getSnapshot().toArray());
+        assertEquals(3, roster.getSnapshot().getVersion());
+    }
+
+    @Test
+    public void publishesRejoinsAsUpdates() throws Exception {
+        roster.update("bob", ChatMessageType.JOIN, 0);
+        RosterSnapshot joined = roster.getSnapshot();
+        roster.update("bob", ChatMessageType.JOIN, 10);
+
+        assertEquals(2, changes.size());
+        RosterSnapshot.Change change = changes.get(1);
+        assertEquals(RosterSnapshot.Change.Kind.UPDATED, change.kind);
+        assertEquals("bob", change.username);
+        assertTrue(change.follows(joined.getVersion()));
+        assertSame(change.snapshot, roster.getSnapshot());
+        assertArrayEquals(joined.toArray(), change.snapshot.toArray());
+        // and the rejoin counts as hearing from them
+        assertTrue(roster.removeZombies(TIMEOUT + 5).isEmpty());
+        assertEquals(Arrays.asList("bob"), roster.removeZombies(TIMEOUT + 100));
+    }
+
+    @Test
+    public void usersTimeOutAtTheirDeadline() throws Exception {
+        roster.update("bob", ChatMessageType.CHAT, 0);
+        assertEquals(TIMEOUT, roster.getNextDeadline());
+        assertEquals(Collections.<String>emptyList(), roster.removeZombies(TIMEOUT - 1));
+        assertEquals(Arrays.asList("bob"), roster.removeZombies(TIMEOUT));
+        assertFalse(roster.contains("bob"));
+        assertEquals(Roster.NO_DEADLINE, roster.getNextDeadline());
+        assertEquals(RosterSnapshot.Change.Kind.LEFT, changes.get(1).kind);
+    }
+
+    @Test
+    public void deadlinesRoundUpToATick() throws Exception {
+        roster.update("bob", ChatMessageType.CHAT, 50);
+        assertEquals(1700, roster.getNextDeadline());
+        assertTrue(roster.removeZombies(1650).isEmpty());
+        assertEquals(Arrays.asList("bob"), roster.removeZombies(1700));
+    }
+
+    @Test
+    public void hearingFromAUserMovesTheirDeadline() throws Exception {
+        roster.update("bob", ChatMessageType.CHAT, 0);
+        roster.update("bob", ChatMessageType.HELLO, 1000);
+        assertTrue(roster.removeZombies(TIMEOUT).isEmpty());
+        assertEquals(1000 + TIMEOUT, roster.getNextDeadline());
+        assertEquals(Arrays.asList("bob"), roster.removeZombies(1000 + TIMEOUT));
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void localUserNeverTimesOut() throws Exception {
+        roster.update("me", ChatMessageType.CHAT, 0);
+        roster.update("me", ChatMessageType.LEAVE, 0);
+        assertEquals(Roster.NO_DEADLINE, roster.getNextDeadline());
+        assertTrue(roster.removeZombies(100 * TIMEOUT).isEmpty());
+        assertTrue(roster.contains("me"));
+        assertTrue(changes.isEmpty());
+    }
+
+    /* Heard from at 4 s with the wheel last swept at 0, bob's deadline tick (56) lands in the
+     *   slot for tick 24, which the next sweep reaches on the current turn.
+     */
+    @Test
+    public void usersDueOnALaterTurnStayPut() throws Exception {
+        roster.update("bob", ChatMessageType.CHAT, 4000);
+        // the slot is looked at early, which may only make the deadline early
+        assertEquals(2400, roster.getNextDeadline());
+        assertTrue(roster.removeZombies(4100).isEmpty());
+        assertTrue(roster.contains("bob"));
+
+        // after the sweep, the next deadline is bob's own
+        assertEquals(5600, roster.getNextDeadline());
+        assertTrue(roster.removeZombies(5599).isEmpty());
+        assertEquals(Arrays.asList("bob"), roster.removeZombies(5600));
+    }
+
+    @Test
+    public void getNextDeadlineSkipsSweptSlots() throws Exception {
+        roster.update("bob", ChatMessageType.CHAT, 0);
+        roster.update("carol", ChatMessageType.CHAT, 500);
+        assertEquals(Arrays.asList("bob"), roster.removeZombies(1800));
+        assertEquals(2100, roster.getNextDeadline());
+        assertTrue(roster.removeZombies(2000).isEmpty());
+        assertEquals(2100, roster.getNextDeadline());
+        assertEquals(Arrays.asList("carol"), roster.removeZombies(2100));
+        assertEquals(Roster.NO_DEADLINE, roster.getNextDeadline());
+    }
+
+    @Test
+    public void aLongPauseSweepsEverySlotOnce() throws Exception {
+        for (int i = 0; i < 40; i++) roster.update("user" + i, ChatMessageType.CHAT, 100 * i);
+        assertEquals(40, roster.removeZombies(100 * TIMEOUT).size());
+        assertEquals(1, roster.getSnapshot().size());
+        assertEquals(Roster.NO_DEADLINE, roster.getNextDeadline());
+    }
+}
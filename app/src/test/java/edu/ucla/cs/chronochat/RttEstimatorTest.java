@@ -0,0 +1,58 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RttEstimatorTest {
+
+    private RttEstimator estimator;
+
+    @Before
+    public void setUp() {
+        estimator = new RttEstimator();
+    }
+
+    @Test
+    public void startsWithOneSecond() throws Exception {
+        assertEquals(1000, estimator.getRto());
+        assertEquals(1000, estimator.getSmoothedRtt());
+    }
+
+    /* RFC 6298 section 2: SRTT = R, RTTVAR = R/2 on the first sample, then
+     *   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R| and SRTT = 7/8 SRTT + 1/8 R, with
+     *   RTO = SRTT + 4 RTTVAR.
+     */
+    @Test
+    public void followsRfc6298() throws Exception {
+        estimator.addSample(400);
+        assertEquals(400, estimator.getSmoothedRtt());
+        assertEquals(400 + 4 * 200, estimator.getRto());
+        estimator.addSample(800);
+        // RTTVAR = 150 + 100 = 250; SRTT = 350 + 100 = 450
+        assertEquals(450, estimator.getSmoothedRtt());
+        assertEquals(450 + 4 * 250, estimator.getRto());
+    }
+
+    @Test
+    public void clampsTheRto() throws Exception {
+        estimator.addSample(10);
+        assertEquals(200, estimator.getRto());
+        estimator = new RttEstimator();
+        estimator.addSample(30000);
+        assertEquals(10000, estimator.getRto());
+    }
+
+    @Test
+    public void backsOffUpToTheMaximum() throws Exception {
+        estimator.addSample(400);
+        assertEquals(1200, estimator.getBackedOffRto(0));
+        assertEquals(2400, estimator.getBackedOffRto(1));
+        assertEquals(4800, estimator.getBackedOffRto(2));
+        assertEquals(9600, estimator.getBackedOffRto(3));
+        assertEquals(10000, estimator.getBackedOffRto(4));
+        assertEquals(10000, estimator.getBackedOffRto(Integer.MAX_VALUE));
+    }
+}
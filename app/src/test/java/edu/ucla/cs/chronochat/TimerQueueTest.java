@@ -0,0 +1,143 @@
+package edu.ucla.cs.chronochat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+public class TimerQueueTest {
+
+    private TimerQueue timers;
+    private ArrayList<String> ran;
+
+    @Before
+    public void setUp() {
+        timers = new TimerQueue();
+        ran = new ArrayList<>();
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() { ran.add(name); }
+        };
+    }
+
+    @Test
+    public void runsTimersInOrderOfDueTime() throws Exception {
+        timers.schedule(record("c"), 30);
+        timers.schedule(record("a"), 10);
+        timers.schedule(record("b"), 20);
+        assertEquals(10, timers.getNextDeadline());
+        assertEquals(0, timers.runDue(9));
+        assertEquals(2, timers.runDue(20));
+        assertEquals(Arrays.asList("a", "b"), ran);
+        assertEquals(30, timers.getNextDeadline());
+        assertEquals(1, timers.runDue(100));
+        assertEquals(TimerQueue.NO_DEADLINE, timers.getNextDeadline());
+    }
+
+    @Test
+    public void timersDueTogetherRunInTheOrderScheduled() throws Exception {
+        for (String name : new String[] { "a", "b", "c", "d", "e" })
+            timers.schedule(record(name), 5);
+        timers.schedule(record("first"), 4);
+        timers.runDue(5);
+        assertEquals(Arrays.asList("first", "a", "b", "c", "d", "e"), ran);
+    }
+
+    @Test
+    public void cancelledTimersDoNotRun() throws Exception {
+        TimerQueue.Timer a = timers.schedule(record("a"), 10),
+                         b = timers.schedule(record("b"), 20);
+        timers.schedule(record("c"), 30);
+        a.cancel();
+        b.cancel();
+        b.cancel();
+        assertFalse(a.isScheduled());
+        assertEquals(1, timers.size());
+        assertEquals(30, timers.getNextDeadline());
+        timers.runDue(100);
+        assertEquals(Arrays.asList("c"), ran);
+    }
+
+    @Test
+    public void cancellingARunTimerDoesNothing() throws Exception {
+        TimerQueue.Timer a = timers.schedule(record("a"), 10);
+        TimerQueue.Timer b = timers.schedule(record("b"), 20);
+        timers.runDue(10);
+        assertFalse(a.isScheduled());
+        a.cancel();
+        assertTrue(b.isScheduled());
+        assertEquals(1, timers.size());
+    }
+
+    /* Rescheduling is cancelling and scheduling again, as the services do with their timers. */
+    @Test
+    public void rescheduledTimersRunAtTheirNewTime() throws Exception {
+        TimerQueue.Timer a = timers.schedule(record("a"), 10);
+        timers.schedule(record("b"), 20);
+        a.cancel();
+        a = timers.schedule(record("a"), 25);
+        assertEquals(20, timers.getNextDeadline());
+        timers.runDue(20);
+        assertEquals(Arrays.asList("b"), ran);
+        assertEquals(25, a.getDue());
+        timers.runDue(25);
+        assertEquals(Arrays.asList("b", "a"), ran);
+    }
+
+    @Test
+    public void timersMayScheduleMoreWhileRunning() throws Exception {
+        timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("a");
+                timers.schedule(record("due now"), 10);
+                timers.schedule(record("later"), 50);
+            }
+        }, 10);
+        assertEquals(2, timers.runDue(10));
+        assertEquals(Arrays.asList("a", "due now"), ran);
+        assertEquals(50, timers.getNextDeadline());
+    }
+
+    @Test
+    public void clearCancelsEverything() throws Exception {
+        TimerQueue.Timer a = timers.schedule(record("a"), 10);
+        timers.schedule(record("b"), 20);
+        timers.clear();
+        assertFalse(a.isScheduled());
+        assertEquals(0, timers.size());
+        assertEquals(0, timers.runDue(100));
+        assertTrue(ran.isEmpty());
+    }
+
+    /* Cancels a random half of many timers, then checks the rest run in order of due time. */
+    @Test
+    public void heapStaysOrderedThroughCancels() throws Exception {
+        Random random = new Random(1);
+        List<TimerQueue.Timer> scheduled = new ArrayList<>();
+        final List<Long> dues = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final long due = random.nextInt(100);
+            scheduled.add(timers.schedule(new Runnable() {
+                @Override
+                public void run() { dues.add(due); }
+            }, due));
+        }
+        Collections.shuffle(scheduled, random);
+        for (TimerQueue.Timer timer : scheduled.subList(0, 500)) timer.cancel();
+        assertEquals(500, timers.size());
+        timers.runDue(100);
+        assertEquals(500, dues.size());
+        for (int i = 1; i < dues.size(); i++) assertTrue(dues.get(i - 1) <= dues.get(i));
+    }
+}
@@ -0,0 +1,69 @@
+package edu.ucla.cs.chronochat;
+
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* Encoding and decoding a chat message, in the full and the compact wire formats, and passing one
+ *   through a Parcel as the activity and service do.
+ */
+@State(Scope.Thread)
+public class ChatMessageBenchmark {
+
+    @Param({"16", "512"})
+    public int textLength;
+
+    private ChronoChatMessage message;
+    private byte[] encoded, encodedCompact;
+    private long session;
+    private Parcel parcel;
+
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < textLength) text.append("hello world ");
+        text.setLength(textLength);
+        message = new ChronoChatMessage("alice", "lobby", ChatMessageType.CHAT, text.toString());
+        encoded = message.toByteArray();
+        session = message.getTimestamp() - 3600;
+        encodedCompact = ChatWireFormat.encodeCompact(message, session);
+        parcel = Parcel.obtain();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return new ChronoChatMessage("alice", "lobby", ChatMessageType.CHAT, message.getData())
+                .toByteArray();
+    }
+
+    @Benchmark
+    public ChronoChatMessage decode() {
+        return new ChronoChatMessage(encoded);
+    }
+
+    @Benchmark
+    public byte[] encodeCompact() {
+        return ChatWireFormat.encodeCompact(message, session);
+    }
+
+    @Benchmark
+    public ChronoChatMessage decodeCompact() throws Exception {
+        return ChatWireFormat.decodeCompact(encodedCompact, "alice", "lobby", session);
+    }
+
+    @Benchmark
+    public ChronoChatMessage parcelRoundTrip() {
+        parcel.recycle();
+        message.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        return ChronoChatMessage.CREATOR.createFromParcel(parcel);
+    }
+}
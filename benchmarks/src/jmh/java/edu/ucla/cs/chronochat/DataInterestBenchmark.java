@@ -0,0 +1,96 @@
+package edu.ucla.cs.chronochat;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.Name;
+import net.named_data.jndn.util.Blob;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* Serving a data interest through the DataResponder that ChronoSyncService's OnDataInterest
+ *   uses: parse the name, then answer from the encoded data cache or, on a miss, encode the Data
+ *   from the sent data log. With cacheBytes = 0 every interest is a miss. payloads = false asks
+ *   for the names older versions of the app fetch, whose misses re-encode the message for them.
+ */
+@State(Scope.Thread)
+public class DataInterestBenchmark {
+
+    private static final int LOGGED_MESSAGES = 1000;
+    private static final long SESSION = 1491234567L;
+    private static final String DATA_PREFIX = "/ndn/edu/ucla/lobby/" +
+            ChatWireFormat.DATA_PREFIX_MARKER.toEscapedString() + "/alice/4f0c9b5e";
+
+    @Param({"0", "1048576"})
+    public long cacheBytes;
+
+    @Param({"true", "false"})
+    public boolean payloads;
+
+    private File logDirectory;
+    private SentDataLog sentData;
+    private DataResponder dataResponder;
+    private Interest[] interests;
+    private int nextInterest = 0;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        logDirectory = File.createTempFile("sent-data", "");
+        if (!logDirectory.delete()) throw new IOException("can't replace " + logDirectory);
+        sentData = new SentDataLog(logDirectory);
+        dataResponder = new DataResponder(new Name(DATA_PREFIX),
+                new EncodedDataCache(cacheBytes), olderPeersEncoder);
+
+        Name sessionName = DataNames.getSessionName(DATA_PREFIX, SESSION, payloads);
+        interests = new Interest[LOGGED_MESSAGES];
+        for (int seqNum = 0; seqNum < LOGGED_MESSAGES; seqNum++) {
+            ChronoChatMessage message = new ChronoChatMessage("alice", "lobby",
+                    ChatMessageType.CHAT, "message number " + seqNum, (int) SESSION + seqNum);
+            sentData.append(SESSION, seqNum, ChatWireFormat.encodeCompact(message, SESSION));
+            interests[seqNum] = DataNames.makeInterest(sessionName, seqNum, 4000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sentData.close();
+        File[] files = logDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        logDirectory.delete();
+    }
+
+    @Benchmark
+    public Blob serve() {
+        Interest interest = interests[nextInterest];
+        nextInterest = (nextInterest + 1) % LOGGED_MESSAGES;
+        return dataResponder.respond(interest.getName(), sentData);
+    }
+
+    // as ChronoChatService does, for a payload of one message, which is neither framed nor
+    // compressed
+    private final DataResponder.OlderPeersEncoder olderPeersEncoder =
+            new DataResponder.OlderPeersEncoder() {
+                @Override
+                public byte[] encode(long session, byte[] payload) {
+                    try {
+                        return ChatWireFormat.encodeForOlderVersions(
+                                Collections.singletonList(payload), "alice", "lobby", session);
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+}
@@ -0,0 +1,58 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.Name;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/* Building data interest names and reading the seqnum and session back out of them, as
+ *   DataNames does for the service. The "strings" variants are the old way (concatenate,
+ *   new Name(String), parse toEscapedString()) and serve as a baseline for NameComponents.
+ */
+@State(Scope.Thread)
+public class DataNamesBenchmark {
+
+    private static final String DATA_PREFIX =
+            "/ndn/edu/ucla/lobby/4f0c9b5e-8e38-4c2a-9b67-1fd3e0b7e3a1";
+    private static final long SESSION = 1491234567L;
+
+    private Name dataPrefix, sessionName, dataName;
+    private String sessionUri;
+    private final DataNames.Request request = new DataNames.Request();
+    private long seqNum = 1000;
+
+
+    @Setup
+    public void setUp() {
+        dataPrefix = new Name(DATA_PREFIX);
+        sessionName = DataNames.getSessionName(DATA_PREFIX, SESSION, true);
+        sessionUri = sessionName.toUri();
+        dataName = new Name(sessionName).append(NameComponents.fromDecimal(123456));
+    }
+
+    @Benchmark
+    public Interest buildInterest() {
+        return DataNames.makeInterest(sessionName, seqNum++, 4000);
+    }
+
+    @Benchmark
+    public Interest buildInterestWithStrings() {
+        return new Interest(new Name(sessionUri + "/" + seqNum++));
+    }
+
+    @Benchmark
+    public long parseName() {
+        DataNames.parse(dataPrefix, dataName, request);
+        return request.seqNum + request.session;
+    }
+
+    @Benchmark
+    public long parseNameWithStrings() {
+        return Long.parseLong(dataName.get(-1).toEscapedString()) +
+                Long.parseLong(dataName.get(-2).toEscapedString());
+    }
+}
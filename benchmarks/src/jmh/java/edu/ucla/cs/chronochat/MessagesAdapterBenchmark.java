@@ -0,0 +1,101 @@
+package edu.ucla.cs.chronochat;
+
+import android.content.Context;
+import android.view.View;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* Adding messages to the chat log, which keeps them in timestamp order. Messages fetched from
+ *   peers often arrive out of order, so besides appends in order this measures adds that land a
+ *   few positions back, as after a catch-up, both one at a time and in a single addAll().
+ */
+@State(Scope.Thread)
+public class MessagesAdapterBenchmark {
+
+    private static final int MESSAGES_PER_OP = 100;
+
+    @Param({"100", "300"})
+    public int existingMessages; // the adapter keeps at most 300, dropping the oldest
+
+    @Param({"0", "10"})
+    public int maxDisorder; // how many seconds earlier than the newest an arriving message may be
+
+    private ArrayList<ChronoChatMessage> messages;
+    private MessagesAdapter adapter;
+    private ChronoChatMessage[] existing, arriving;
+    private List<ChronoChatMessage> arrivingList;
+    private MessagesAdapter shown;
+    private View[] convertViews = new View[4];
+
+
+    @Setup
+    public void setUp() {
+        messages = new ArrayList<>(existingMessages + MESSAGES_PER_OP);
+        adapter = new MessagesAdapter(new Context(), messages);
+        existing = new ChronoChatMessage[existingMessages];
+        for (int i = 0; i < existingMessages; i++) existing[i] = message(i);
+
+        Random random = new Random(42);
+        arriving = new ChronoChatMessage[MESSAGES_PER_OP];
+        for (int i = 0; i < MESSAGES_PER_OP; i++) {
+            int disorder = (maxDisorder == 0) ? 0 : random.nextInt(maxDisorder + 1);
+            arriving[i] = message(existingMessages + i - disorder);
+        }
+        arrivingList = Arrays.asList(arriving);
+
+        shown = new MessagesAdapter(new Context(), new ArrayList<ChronoChatMessage>());
+        shown.setLoggedInUsername("user0");
+        shown.addAll(existing);
+    }
+
+    /* Each op first puts the log back to the existing messages, with a plain copy that doesn't
+     *   allocate, so every op adds to a log of the same size.
+     */
+    @Benchmark
+    public int add100() {
+        messages.clear();
+        for (ChronoChatMessage message : existing) messages.add(message);
+        for (ChronoChatMessage message : arriving) adapter.add(message);
+        return adapter.getCount();
+    }
+
+    /* The same messages delivered together, as after a catch-up. */
+    @Benchmark
+    public int addAll100() {
+        messages.clear();
+        for (ChronoChatMessage message : existing) messages.add(message);
+        adapter.addAll(arrivingList);
+        return adapter.getCount();
+    }
+
+    /* Binding every row of a full log, as in a fling, with one recycled view per row type. */
+    @Benchmark
+    public int bindAll() {
+        int bound = 0;
+        for (int position = 0; position < shown.getCount(); position++) {
+            int type = shown.getItemViewType(position);
+            convertViews[type] = shown.getView(position, convertViews[type], null);
+            bound++;
+        }
+        return bound;
+    }
+
+    private static ChronoChatMessage message(int timestamp) {
+        ChatbufProto.ChatMessage message = ChatbufProto.ChatMessage.newBuilder()
+                .setFrom("user" + (timestamp % 7)).setTo("lobby").setData("hi")
+                .setType(ChatMessageType.CHAT).setTimestamp(timestamp).build();
+        return new ChronoChatMessage(message.toByteArray());
+    }
+}
@@ -0,0 +1,58 @@
+package edu.ucla.cs.chronochat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* Compressing and decompressing a batch of chat messages, as published under one seqnum. */
+@State(Scope.Thread)
+public class PayloadCompressionBenchmark {
+
+    @Param({"1", "20"})
+    public int batchSize;
+
+    private final PayloadCompression compression = new PayloadCompression();
+    private byte[] payload, compressed;
+
+
+    @Setup
+    public void setUp() {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            String text = "message " + i + ": sorry, I can't make it today, see you tomorrow?";
+            messages.add(new ChronoChatMessage("alice", "lobby", ChatMessageType.CHAT, text)
+                    .toByteArray());
+        }
+        while (batchSize == 1 && messages.get(0).length < PayloadCompression.MIN_COMPRESSED_SIZE) {
+            String text = new ChronoChatMessage(messages.get(0)).getData();
+            messages.set(0, new ChronoChatMessage("alice", "lobby", ChatMessageType.CHAT,
+                    text + " " + text).toByteArray());
+        }
+        payload = batchSize == 1 ? messages.get(0) : PayloadFrames.encode(messages);
+        compressed = compression.compress(payload);
+    }
+
+    @TearDown
+    public void tearDown() {
+        compression.close();
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compression.compress(payload);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws Exception {
+        return compression.decompress(compressed);
+    }
+}
@@ -0,0 +1,59 @@
+package edu.ucla.cs.chronochat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+import edu.ucla.cs.chronochat.ChatbufProto.ChatMessage.ChatMessageType;
+
+
+/* Roster updates for incoming messages, and the periodic zombie sweep, in small and large rooms. */
+@State(Scope.Thread)
+public class RosterBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 120000;
+
+    @Param({"10", "500"})
+    public int userCount;
+
+    private Roster roster;
+    private String[] users;
+    private int nextUser = 0;
+    private long now = 0;
+
+
+    @Setup
+    public void setUp() {
+        users = new String[userCount];
+        roster = new Roster("me", TIMEOUT_MILLIS, now);
+        for (int i = 0; i < userCount; i++) {
+            users[i] = "user" + i;
+            roster.update(users[i], ChatMessageType.JOIN, now);
+        }
+    }
+
+    @Benchmark
+    public boolean update() {
+        String user = users[nextUser];
+        nextUser = (nextUser + 1) % userCount;
+        boolean known = roster.contains(user);
+        roster.update(user, ChatMessageType.CHAT, ++now);
+        return known;
+    }
+
+    /* A sweep in which half the room has gone quiet; the quiet half rejoins for the next one. */
+    @Benchmark
+    public List<String> zombieSweep() {
+        now += TIMEOUT_MILLIS / 2;
+        for (int i = 0; i < userCount; i += 2)
+            roster.update(users[i], ChatMessageType.CHAT, now);
+        now += TIMEOUT_MILLIS / 2 + TIMEOUT_MILLIS / 8;
+        List<String> zombies = roster.removeZombies(now);
+        for (String user : zombies) roster.update(user, ChatMessageType.JOIN, now);
+        return zombies;
+    }
+}
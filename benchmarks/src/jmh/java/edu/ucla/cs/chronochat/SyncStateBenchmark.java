@@ -0,0 +1,107 @@
+package edu.ucla.cs.chronochat;
+
+import net.named_data.jndn.Name;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+
+/* What ChronoSyncService does for each received sync state: ProducerTable.onSyncState() finds the
+ *   producer session, announces the new seqnums and queues them in the fetch pipeline, which then
+ *   expresses interests as its windows allow. The service itself needs a Face and a network
+ *   thread, so this drives the same ProducerTable, FetchPipeline and DataNames calls directly.
+ *
+ *   Each op is one sync state that moves a producer ahead by `jump` seqnums. The data then
+ *   "arrives", so the table and pipeline stay in a steady state from op to op.
+ */
+@State(Scope.Thread)
+public class SyncStateBenchmark {
+
+    private static final int PRODUCERS = 64;
+    private static final long SESSION = 1491234567L;
+
+    @Param({"1", "100", "100000"})
+    public long jump;
+
+    private ProducerTable producerTable;
+    private FetchPipeline fetchPipeline;
+    private final ArrayList<Name> sessionNames = new ArrayList<>(); // by producer ID
+    private String[] dataPrefixes;
+    private long[] latestSeqNums;
+    private int nextProducer = 0;
+    private long now = 0;
+    private Blackhole blackhole;
+
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        producerTable = new ProducerTable();
+        fetchPipeline = new FetchPipeline(listener);
+        dataPrefixes = new String[PRODUCERS];
+        latestSeqNums = new long[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            dataPrefixes[i] = "/ndn/edu/ucla/lobby/" +
+                    ChatWireFormat.DATA_PREFIX_MARKER.toEscapedString() + "/user" + i +
+                    "/4f0c9b5e";
+            latestSeqNums[i] = -1;
+        }
+    }
+
+    /* Just the bookkeeping for a sync state: no interests are expressed. */
+    @Benchmark
+    public boolean processSyncState() {
+        int i = nextProducer();
+        long seqNum = latestSeqNums[i] += jump;
+        boolean news = producerTable.onSyncState(dataPrefixes[i], SESSION, seqNum, true,
+                fetchPipeline);
+        // as if it had all been fetched
+        producerTable.skipTo(producerTable.find(dataPrefixes[i], SESSION), seqNum);
+        return news;
+    }
+
+    /* A sync state for one new seqnum, the interest for it, and the reply. */
+    @Benchmark
+    public int fetchOneSeqNum() throws IOException {
+        int i = nextProducer();
+        long seqNum = ++latestSeqNums[i];
+        producerTable.onSyncState(dataPrefixes[i], SESSION, seqNum, true, fetchPipeline);
+        int expressed = fetchPipeline.fill(now);
+        now++;
+        ProducerTable.Session producer = producerTable.find(dataPrefixes[i], SESSION);
+        fetchPipeline.onData(producer.id, seqNum, now);
+        producerTable.markReceived(producer, seqNum);
+        return expressed;
+    }
+
+    private int nextProducer() {
+        int i = nextProducer;
+        nextProducer = (nextProducer + 1) % PRODUCERS;
+        return i;
+    }
+
+    // builds each interest as ChronoSyncService.expressDataInterest() does, with the session's
+    // name made once per producer, as its DataFetchCallbacks are
+    private final FetchPipeline.Listener listener = new FetchPipeline.Listener() {
+        @Override
+        public void expressInterest(int producerId, long seqNum, long lifetimeMillis) {
+            while (sessionNames.size() <= producerId) {
+                ProducerTable.Session producer = producerTable.get(sessionNames.size());
+                sessionNames.add(DataNames.getSessionName(producer.dataPrefix,
+                        producer.session, true));
+            }
+            blackhole.consume(DataNames.makeInterest(sessionNames.get(producerId), seqNum,
+                    lifetimeMillis));
+        }
+
+        @Override
+        public void onFetchAbandoned(int producerId, long seqNum) { }
+    };
+}
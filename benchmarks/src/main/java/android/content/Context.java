@@ -0,0 +1,12 @@
+package android.content;
+
+
+/* Stand-in for android.content.Context; strings resolve to their resource IDs. */
+public class Context {
+
+    public String getString(int resId) { return "string/" + resId; }
+
+    public String getString(int resId, Object... formatArgs) {
+        return getString(resId) + java.util.Arrays.toString(formatArgs);
+    }
+}
@@ -0,0 +1,58 @@
+package android.os;
+
+import java.util.Arrays;
+
+
+/* Stand-in for android.os.Parcel: a growable byte buffer with the methods the app uses, laid out
+ *   like the real one (ints are 4 bytes, byte arrays are length-prefixed and padded to 4 bytes).
+ */
+public final class Parcel {
+
+    private byte[] data = new byte[256];
+    private int position = 0, size = 0;
+
+    private Parcel() { }
+
+    public static Parcel obtain() { return new Parcel(); }
+
+    public void recycle() { position = size = 0; }
+
+    public int dataSize() { return size; }
+
+    public void setDataPosition(int position) { this.position = position; }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        data[position++] = (byte) value;
+        data[position++] = (byte) (value >>> 8);
+        data[position++] = (byte) (value >>> 16);
+        data[position++] = (byte) (value >>> 24);
+        size = Math.max(size, position);
+    }
+
+    public int readInt() {
+        return (data[position++] & 0xff) | (data[position++] & 0xff) << 8 |
+                (data[position++] & 0xff) << 16 | (data[position++] & 0xff) << 24;
+    }
+
+    public void writeByteArray(byte[] bytes) {
+        writeInt(bytes.length);
+        int padded = (bytes.length + 3) & ~3;
+        ensureCapacity(padded);
+        System.arraycopy(bytes, 0, data, position, bytes.length);
+        position += padded;
+        size = Math.max(size, position);
+    }
+
+    public void readByteArray(byte[] bytes) {
+        int length = readInt();
+        if (length != bytes.length) throw new RuntimeException("bad array length");
+        System.arraycopy(data, position, bytes, 0, length);
+        position += (length + 3) & ~3;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, position + extra));
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+
+/* Stand-in for android.os.Parcelable. */
+public interface Parcelable {
+
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+        T[] newArray(int size);
+    }
+}
@@ -0,0 +1,6 @@
+package android.support.annotation;
+
+
+/* Stand-in for the support library annotation. */
+public @interface NonNull {
+}
@@ -0,0 +1,6 @@
+package android.view;
+
+
+/* Stand-in for android.view.ViewGroup. */
+public class ViewGroup extends View {
+}
@@ -0,0 +1,82 @@
+package android.widget;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/* Stand-in for android.widget.ArrayAdapter with the same list semantics as the real one: changes
+ *   go straight to the backing list, and notifyDataSetChanged() only counts notifications.
+ */
+public class ArrayAdapter<T> {
+
+    private final Context context;
+    private final List<T> objects;
+    private boolean notifyOnChange = true;
+    private long notifications = 0;
+
+    public ArrayAdapter(Context context, int resource, List<T> objects) {
+        this.context = context;
+        this.objects = objects;
+    }
+
+    public Context getContext() { return context; }
+    public int getCount() { return objects.size(); }
+    public T getItem(int position) { return objects.get(position); }
+    public long getItemId(int position) { return position; }
+    public int getPosition(T item) { return objects.indexOf(item); }
+    public int getViewTypeCount() { return 1; }
+    public int getItemViewType(int position) { return 0; }
+    public View getView(int position, View convertView, ViewGroup parent) { return convertView; }
+
+    public void add(T object) {
+        objects.add(object);
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    public void addAll(Collection<? extends T> collection) {
+        objects.addAll(collection);
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void addAll(T... items) {
+        objects.addAll(Arrays.asList(items));
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    public void insert(T object, int index) {
+        objects.add(index, object);
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    public void remove(T object) {
+        objects.remove(object);
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    public void clear() {
+        objects.clear();
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    public void sort(Comparator<? super T> comparator) {
+        Collections.sort(objects, comparator);
+        if (notifyOnChange) notifyDataSetChanged();
+    }
+
+    public void setNotifyOnChange(boolean notifyOnChange) { this.notifyOnChange = notifyOnChange; }
+
+    public void notifyDataSetChanged() {
+        notifications++;
+        notifyOnChange = true;
+    }
+
+    public long getNotificationCount() { return notifications; }
+}
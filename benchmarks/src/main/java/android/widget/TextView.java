@@ -0,0 +1,14 @@
+package android.widget;
+
+import android.view.View;
+
+
+/* Stand-in for android.widget.TextView. */
+public class TextView extends View {
+
+    private CharSequence text = "";
+
+    public void setText(CharSequence text) { this.text = text; }
+    public void append(CharSequence text) { this.text = this.text.toString() + text; }
+    public CharSequence getText() { return text; }
+}
@@ -0,0 +1,26 @@
+package edu.ucla.cs.chronochat;
+
+
+/* Stand-in for the generated resource IDs used by the benchmarked classes. */
+public final class R {
+
+    public static final class id {
+        public static final int message_username = 1,
+                                message_text = 2;
+    }
+
+    public static final class layout {
+        public static final int item_sent_message_with_username = 1,
+                                item_sent_message = 2,
+                                item_received_message_with_username = 3,
+                                item_received_message = 4;
+    }
+
+    public static final class string {
+        public static final int message_join = 1,
+                                message_leave = 2,
+                                message_other = 3,
+                                message_missing = 4,
+                                message_unhandled = 5;
+    }
+}